@@ -0,0 +1,581 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+ * marching cubes on a grid that stays fixed in space, split into bricks, so that when the bounds of a graph change
+ * (panning or zooming the domain) only the bricks that weren't there before have to be evaluated and meshed
+ *
+ * the grid points are at origin + k * spacing along each axis, for every integer k, no matter what the bounds are. a
+ * brick is BRICK_SIZE cubes along each axis, starting at a multiple of BRICK_SIZE, and its scalar field and mesh are
+ * kept from one call of mesh to the next. the bounds are rounded out to the nearest grid points, and the bricks that
+ * cover them are put together into the mesh. the bricks cut by the bounds are only meshed up to them, so the surface
+ * doesn't stick out of the box
+ *
+ * each brick is meshed by MarchingCubes with a margin of one grid point around it, taken from the fields of its
+ * neighbours (or evaluated, on the outside of the domain), so the normals use central differences everywhere, and
+ * there are no seams in the shading between bricks. the vertices on the sides of a brick aren't shared with the next
+ * brick, so there are a few more of them than in a mesh made in one piece
+ *
+ * the bricks that the surface can't go through are skipped without evaluating anything in them. they're found with an
+ * octree over the bricks: the function is evaluated over the box of a block of bricks with interval arithmetic
+ * (Expression.evaluate(Interval, Interval, Interval)), and if that shows it's above zero (or NaN) everywhere in the
+ * box, or below zero everywhere, none of the bricks in it can have any triangles. otherwise the block is split into 8
+ * and the same is done for each of them, down to single bricks. so big empty parts of the domain are thrown out with
+ * one evaluation, and thin surfaces can be meshed at resolutions (1024 and up) where the whole field wouldn't fit in
+ * memory, for a fraction of the evaluations. the intervals are conservative, so the mesh is the same as without
+ * this. the bricks that are skipped don't get a field or a mesh, and the bricks next to one evaluate the points of
+ * their margin that would have come from it
+ *
+ * bricks that aren't used by a call to mesh are dropped at the end of it, so this holds on to about as much as one
+ * render. the bricks are done in parallel on the common ForkJoinPool, and one call to mesh runs at a time
+ *
+ * mesh can report its progress as it goes, and it stops early, with a CancellationException, if the thread that called
+ * it is interrupted. the bricks from before are kept as they were when that happens, and the bricks that were being
+ * worked on are finished first, so nothing from a cancelled call is still running when the next one starts
+ *
+ * the maps of fields and meshes are only ever replaced, never changed once they're in place, and they're volatile, so
+ * the pool threads (including the ones working on the finer grid, which read the fields of this one) always see a
+ * complete map
+ *
+ * for previews there is coarser(), a grid with twice the spacing. every other point of this grid is a point of the
+ * coarser one, computed in exactly the same way, so once the coarser grid has a brick, the bricks of this grid inside of
+ * it only evaluate the points in between, and the result is the same as if everything was evaluated
+ */
+public class BrickGrid {
+    // size of a brick, in cubes along each axis
+    public static final int BRICK_SIZE = 16;
+    // how far the bounds can be past a grid point and still be rounded to it, in grid steps
+    private static final double SNAP = 1e-6;
+    // for estimateMemory. a brick's field, with the header of the array, and the mesh of a brick guessed as one flat
+    // sheet of surface through it, about a vertex (6 floats) and two triangles (6 ints) for each cube it crosses
+    private static final long FIELD_BYTES = 16 + (long) (BRICK_SIZE + 1) * (BRICK_SIZE + 1) * (BRICK_SIZE + 1) * Float.BYTES;
+    private static final long MESH_BYTES = 16 * 3 + (long) BRICK_SIZE * BRICK_SIZE * (6 * Float.BYTES + 6 * Integer.BYTES);
+    private final Expression expr;
+    private final double ox, oy, oz;
+    private final double hx, hy, hz;
+    // the fields of the bricks, (BRICK_SIZE + 1)^3 points each, by brick position
+    private volatile Map<Brick, float[]> fields = new HashMap<>();
+    // the meshes of the bricks, by brick position and range of cubes meshed
+    private volatile Map<Brick, Mesh> meshes = new HashMap<>();
+    // what the last call to mesh did
+    private final AtomicLong evaluations = new AtomicLong();
+    private int bricksBuilt, bricksReused;
+    // the grid with twice the spacing, made by coarser(). the bricks read it from the pool threads, while mesh holds
+    // the lock, so it's volatile instead of synchronized
+    private volatile BrickGrid coarser;
+    
+    // a grid with a point at (ox, oy, oz), and the given distance between points along each axis
+    public BrickGrid(Expression expr, double ox, double oy, double oz, double hx, double hy, double hz) {
+        if (!(hx > 0 && hy > 0 && hz > 0) || Double.isInfinite(hx) || Double.isInfinite(hy) || Double.isInfinite(hz)) {
+            throw new IllegalArgumentException("Invalid grid spacing: " + hx + ", " + hy + ", " + hz);
+        }
+        this.expr = expr;
+        this.ox = ox;
+        this.oy = oy;
+        this.oz = oz;
+        this.hx = hx;
+        this.hy = hy;
+        this.hz = hz;
+    }
+    
+    // the grid with the same origin and twice the spacing, for a quicker preview of the same surface. it's kept, so
+    // calling this again gives the same grid, with the bricks it already has
+    public synchronized BrickGrid coarser() {
+        if (coarser == null) {
+            coarser = new BrickGrid(expr, ox, oy, oz, hx * 2, hy * 2, hz * 2);
+        }
+        return coarser;
+    }
+    
+    public Expression getExpression() {
+        return expr;
+    }
+    
+    // the distance between grid points along each axis
+    public double[] getSpacing() {
+        return new double[]{hx, hy, hz};
+    }
+    
+    // the number of cubes along each axis that the grid has over the given bounds
+    public int[] resolution(double x1, double y1, double z1, double x2, double y2, double z2) {
+        return new int[]{
+            last(x1, x2, ox, hx) - first(x1, x2, ox, hx),
+            last(y1, y2, oy, hy) - first(y1, y2, oy, hy),
+            last(z1, z2, oz, hz) - first(z1, z2, oz, hz)
+        };
+    }
+    
+    // a rough guess at how much more of the heap a call to mesh with these bounds would use: a field and a mesh for each
+    // brick that isn't there already. the bricks from before are only let go of at the end of the call, so the ones
+    // that get dropped don't make room. the whole mesh is put together in direct memory, so it's left out
+    public long estimateMemory(double x1, double y1, double z1, double x2, double y2, double z2) {
+        List<Brick> bricks = surfaceBricks(first(x1, x2, ox, hx), first(y1, y2, oy, hy), first(z1, z2, oz, hz),
+            last(x1, x2, ox, hx), last(y1, y2, oy, hy), last(z1, z2, oz, hz));
+        Map<Brick, float[]> fields = this.fields;
+        long count = 0;
+        for (Brick b : bricks) {
+            if (!fields.containsKey(b.position())) {
+                count++;
+            }
+        }
+        return count * (FIELD_BYTES + MESH_BYTES);
+    }
+    
+    // whether meshing the bounds on each of the grids in turn, like the levels of a progressive render, fits in the
+    // heap that's left. every level keeps its bricks, so they all add up
+    public static boolean fitsInMemory(List<BrickGrid> grids, double x1, double y1, double z1, double x2, double y2, double z2) {
+        long needed = 0;
+        for (BrickGrid grid : grids) {
+            needed += grid.estimateMemory(x1, y1, z1, x2, y2, z2);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return needed <= available;
+    }
+    
+    // the number of points evaluated by the last call to mesh
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+    
+    // the number of bricks that the last call to mesh had to mesh, and the number it took as they were
+    public int getBricksBuilt() {
+        return bricksBuilt;
+    }
+    
+    public int getBricksReused() {
+        return bricksReused;
+    }
+    
+    // the mesh of the surface over the bounds, rounded out to the grid, reusing whatever bricks it can from before
+    public Mesh mesh(double x1, double y1, double z1, double x2, double y2, double z2) {
+        return mesh(x1, y1, z1, x2, y2, z2, null);
+    }
+    
+    // the same, telling the listener (if it isn't null) about each brick that's done
+    public synchronized Mesh mesh(double x1, double y1, double z1, double x2, double y2, double z2, ProgressListener listener) {
+        // the range of cubes to mesh, in grid steps from the origin
+        int cx0 = first(x1, x2, ox, hx), cx1 = last(x1, x2, ox, hx);
+        int cy0 = first(y1, y2, oy, hy), cy1 = last(y1, y2, oy, hy);
+        int cz0 = first(z1, z2, oz, hz), cz1 = last(z1, z2, oz, hz);
+        if ((long) (cx1 - cx0) * (cy1 - cy0) * (cz1 - cz0) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Resolution too high: " + (cx1 - cx0) + "x" + (cy1 - cy0) + "x" + (cz1 - cz0));
+        }
+        List<Brick> bricks = surfaceBricks(cx0, cy0, cz0, cx1, cy1, cz1);
+        
+        // first the fields of the new bricks, since the meshes need the fields of their neighbours
+        Map<Brick, float[]> newFields = new HashMap<>();
+        List<Brick> missingFields = new ArrayList<>();
+        for (Brick b : bricks) {
+            float[] field = fields.get(b.position());
+            if (field != null) {
+                newFields.put(b.position(), field);
+            } else {
+                missingFields.add(b.position());
+            }
+        }
+        // every field and every mesh that has to be made counts as a step
+        Progress progress = new Progress(listener, missingFields.size() + bricks.size());
+        evaluations.set(0);
+        List<float[]> computed = run(missingFields, this::field, progress);
+        for (int i = 0; i < missingFields.size(); i++) {
+            newFields.put(missingFields.get(i), computed.get(i));
+        }
+        fields = newFields;
+        
+        // then the meshes
+        Map<Brick, Mesh> newMeshes = new HashMap<>();
+        List<Brick> missingMeshes = new ArrayList<>();
+        for (Brick b : bricks) {
+            Mesh mesh = meshes.get(b);
+            if (mesh != null) {
+                newMeshes.put(b, mesh);
+            } else {
+                missingMeshes.add(b);
+            }
+        }
+        progress.advance(bricks.size() - missingMeshes.size());
+        List<Mesh> built = run(missingMeshes, this::brickMesh, progress);
+        for (int i = 0; i < missingMeshes.size(); i++) {
+            newMeshes.put(missingMeshes.get(i), built.get(i));
+        }
+        meshes = newMeshes;
+        bricksBuilt = missingMeshes.size();
+        bricksReused = bricks.size() - bricksBuilt;
+        
+        // join the bricks, in order, offsetting their indices by the number of vertices before them. the whole mesh goes
+        // into direct buffers, ready for opengl
+        long vertexCount = 0;
+        long indexCount = 0;
+        for (Brick b : bricks) {
+            Mesh mesh = meshes.get(b);
+            vertexCount += mesh.getVertexCount();
+            indexCount += mesh.getTriangleCount() * 3L;
+        }
+        if (vertexCount > Integer.MAX_VALUE || indexCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mesh too large");
+        }
+        Mesh joined = Mesh.allocate((int) vertexCount, (int) indexCount);
+        FloatBuffer vertices = joined.getVertexBuffer();
+        IntBuffer indices = joined.getIndexBuffer();
+        int offset = 0;
+        for (Brick b : bricks) {
+            Mesh mesh = meshes.get(b);
+            vertices.put(mesh.getVertexBuffer());
+            for (int index : mesh.getIndices()) {
+                indices.put(index + offset);
+            }
+            offset += mesh.getVertexCount();
+        }
+        return joined;
+    }
+    
+    // the bricks that cover the range of cubes, each with the part of the range that's inside of it, in order, leaving
+    // out the ones the surface can't go through
+    private List<Brick> surfaceBricks(int cx0, int cy0, int cz0, int cx1, int cy1, int cz1) {
+        // the bricks in the range, from b0 to b1 along each axis, not including b1
+        int bx0 = Math.floorDiv(cx0, BRICK_SIZE), bx1 = Math.floorDiv(cx1 - 1, BRICK_SIZE) + 1;
+        int by0 = Math.floorDiv(cy0, BRICK_SIZE), by1 = Math.floorDiv(cy1 - 1, BRICK_SIZE) + 1;
+        int bz0 = Math.floorDiv(cz0, BRICK_SIZE), bz1 = Math.floorDiv(cz1 - 1, BRICK_SIZE) + 1;
+        // the root of the octree is the smallest power of two number of bricks that covers them. the nodes are stored
+        // as the brick at their lowest corner, and the ones on each level are checked in parallel
+        int size = 1;
+        while (size < Math.max(bx1 - bx0, Math.max(by1 - by0, bz1 - bz0))) {
+            size *= 2;
+        }
+        List<Brick> nodes = new ArrayList<>();
+        nodes.add(new Brick(bx0, by0, bz0, 0, 0, 0, 0, 0, 0));
+        for (; ; size /= 2) {
+            int s = size;
+            List<Boolean> surface = run(nodes, n -> mightContainSurface(n.x, n.y, n.z,
+                Math.min(n.x + s, bx1), Math.min(n.y + s, by1), Math.min(n.z + s, bz1)), new Progress(null, 0));
+            List<Brick> left = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                if (surface.get(i)) {
+                    left.add(nodes.get(i));
+                }
+            }
+            if (size == 1) {
+                nodes = left;
+                break;
+            }
+            // split the rest into 8, leaving out the children that are past the end of the range
+            int half = size / 2;
+            nodes = new ArrayList<>();
+            for (Brick n : left) {
+                for (int x = n.x; x < Math.min(n.x + size, bx1); x += half) {
+                    for (int y = n.y; y < Math.min(n.y + size, by1); y += half) {
+                        for (int z = n.z; z < Math.min(n.z + size, bz1); z += half) {
+                            nodes.add(new Brick(x, y, z, 0, 0, 0, 0, 0, 0));
+                        }
+                    }
+                }
+            }
+        }
+        
+        // the bricks in order, with the part of the range that's inside of each of them
+        nodes.sort(Comparator.comparingInt((Brick b) -> b.x).thenComparingInt(b -> b.y).thenComparingInt(b -> b.z));
+        List<Brick> ret = new ArrayList<>();
+        for (Brick b : nodes) {
+            ret.add(new Brick(b.x, b.y, b.z,
+                clamp(cx0 - b.x * BRICK_SIZE), clamp(cy0 - b.y * BRICK_SIZE), clamp(cz0 - b.z * BRICK_SIZE),
+                clamp(cx1 - b.x * BRICK_SIZE), clamp(cy1 - b.y * BRICK_SIZE), clamp(cz1 - b.z * BRICK_SIZE)));
+        }
+        return ret;
+    }
+    
+    // whether the surface might go through the bricks from (bx0, by0, bz0) up to (bx1, by1, bz1), not including the
+    // last ones, from the range of the function over their box. the cube index of MarchingCubes treats NaN as
+    // positive, so they can be skipped if the function is positive or NaN all over the box, or if it's negative all
+    // over it and never NaN. the values are rounded to floats in the field
+    private boolean mightContainSurface(int bx0, int by0, int bz0, int bx1, int by1, int bz1) {
+        Interval range = expr.evaluate(span(ox, hx, bx0, bx1), span(oy, hy, by0, by1), span(oz, hz, bz0, bz1));
+        boolean positive = range.isEmpty() || range.lo > 0 && (float) range.lo > 0;
+        boolean negative = range.hi <= 0 && !range.undefined;
+        return !positive && !negative;
+    }
+    
+    // the coordinates along an axis from the first grid point of brick b0 to the last one of the brick before b1,
+    // worked out the same way as in coordinates so the ends are exactly points in the fields
+    private static Interval span(double origin, double step, int b0, int b1) {
+        return new Interval(origin + b0 * BRICK_SIZE * step, origin + b1 * BRICK_SIZE * step);
+    }
+    
+    // the index of the first grid point at or below a, or above b if they're the wrong way around
+    private static int first(double a, double b, double origin, double step) {
+        return (int) Math.floor((Math.min(a, b) - origin) / step + SNAP);
+    }
+    
+    // the index of the first grid point at or above the larger bound, at least one step after first
+    private static int last(double a, double b, double origin, double step) {
+        return Math.max((int) Math.ceil((Math.max(a, b) - origin) / step - SNAP), first(a, b, origin, step) + 1);
+    }
+    
+    private static int clamp(int cube) {
+        return Math.max(0, Math.min(BRICK_SIZE, cube));
+    }
+    
+    // the coordinates of count grid points along an axis, starting at the one with the given index
+    private static double[] coordinates(double origin, double step, int start, int count) {
+        double[] ret = new double[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = origin + (start + i) * step;
+        }
+        return ret;
+    }
+    
+    // evaluates the field of a brick
+    private float[] field(Brick b) {
+        int n = BRICK_SIZE + 1;
+        double[] xs = coordinates(ox, hx, b.x * BRICK_SIZE, n);
+        double[] ys = coordinates(oy, hy, b.y * BRICK_SIZE, n);
+        double[] zs = coordinates(oz, hz, b.z * BRICK_SIZE, n);
+        // the brick of the coarser grid that this one is a part of, if it has been made
+        float[] coarse = null;
+        BrickGrid c = coarser;
+        if (c != null) {
+            coarse = c.fields.get(new Brick(Math.floorDiv(b.x, 2), Math.floorDiv(b.y, 2), Math.floorDiv(b.z, 2), 0, 0, 0, 0, 0, 0));
+        }
+        if (coarse == null) {
+            MarchingCubes mc = new MarchingCubes(expr, xs, ys, zs);
+            mc.setExecutor(null);
+            mc.generateScalarField();
+            evaluations.addAndGet(mc.getEvaluations());
+            return mc.getScalarField();
+        }
+        
+        // the even points are copied from the coarser grid, where (2k) * h is the same double as k * (2h). the rest are
+        // evaluated a row at a time, like MarchingCubes does, and only the odd points of the rows with even x and y
+        int half = BRICK_SIZE / 2;
+        int sx = Math.floorMod(b.x, 2) * half, sy = Math.floorMod(b.y, 2) * half, sz = Math.floorMod(b.z, 2) * half;
+        float[] field = new float[n * n * n];
+        ExpressionFunction f = expr.newEvaluator();
+        double[] rowX = new double[n];
+        double[] rowY = new double[n];
+        double[] oddZ = new double[half];
+        for (int z = 0; z < half; z++) {
+            oddZ[z] = zs[2 * z + 1];
+        }
+        float[] odd = new float[half];
+        long count = 0;
+        for (int x = 0; x < n; x++) {
+            Arrays.fill(rowX, xs[x]);
+            for (int y = 0; y < n; y++) {
+                Arrays.fill(rowY, ys[y]);
+                int row = (x * n + y) * n;
+                if (x % 2 == 0 && y % 2 == 0) {
+                    int coarseRow = ((sx + x / 2) * n + sy + y / 2) * n + sz;
+                    for (int z = 0; z <= half; z++) {
+                        field[row + 2 * z] = coarse[coarseRow + z];
+                    }
+                    f.eval(rowX, rowY, oddZ, odd, 0, half);
+                    for (int z = 0; z < half; z++) {
+                        field[row + 2 * z + 1] = odd[z];
+                    }
+                    count += half;
+                } else {
+                    f.eval(rowX, rowY, zs, field, row, n);
+                    count += n;
+                }
+            }
+        }
+        evaluations.addAndGet(count);
+        return field;
+    }
+    
+    // meshes the range of cubes of a brick, with a margin of one point around it for the normals
+    private Mesh brickMesh(Brick b) {
+        int n = BRICK_SIZE + 3;
+        double[] xs = coordinates(ox, hx, b.x * BRICK_SIZE - 1, n);
+        double[] ys = coordinates(oy, hy, b.y * BRICK_SIZE - 1, n);
+        double[] zs = coordinates(oz, hz, b.z * BRICK_SIZE - 1, n);
+        // the fields of the brick and its 26 neighbours, or null for the ones that aren't there
+        float[][] around = new float[27][];
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    around[((dx + 1) * 3 + dy + 1) * 3 + dz + 1] = fields.get(new Brick(b.x + dx, b.y + dy, b.z + dz, 0, 0, 0, 0, 0, 0));
+                }
+            }
+        }
+        float[] padded = new float[n * n * n];
+        ExpressionFunction f = null;
+        int m = BRICK_SIZE + 1;
+        for (int x = 0; x < n; x++) {
+            // which brick the point is in along each axis, and where in that brick
+            int dx = x == 0 ? -1 : x == n - 1 ? 1 : 0;
+            int lx = x - 1 - dx * BRICK_SIZE;
+            for (int y = 0; y < n; y++) {
+                int dy = y == 0 ? -1 : y == n - 1 ? 1 : 0;
+                int ly = y - 1 - dy * BRICK_SIZE;
+                int row = (x * n + y) * n;
+                // the middle of the row comes from one brick, the ends from the ones before and after it along z
+                float[] field = around[((dx + 1) * 3 + dy + 1) * 3 + 1];
+                if (field != null) {
+                    System.arraycopy(field, (lx * m + ly) * m, padded, row + 1, m);
+                }
+                for (int z = 0; z < n; z++) {
+                    int dz = z == 0 ? -1 : z == n - 1 ? 1 : 0;
+                    field = around[((dx + 1) * 3 + dy + 1) * 3 + dz + 1];
+                    if (field == null) {
+                        if (f == null) {
+                            f = expr.newEvaluator();
+                        }
+                        padded[row + z] = (float) f.eval(xs[x], ys[y], zs[z]);
+                        evaluations.incrementAndGet();
+                    } else if (dz != 0) {
+                        padded[row + z] = field[(lx * m + ly) * m + z - 1 - dz * BRICK_SIZE];
+                    }
+                }
+            }
+        }
+        MarchingCubes mc = new MarchingCubes(expr, xs, ys, zs);
+        mc.setExecutor(null);
+        mc.setScalarField(padded);
+        return mc.extractIndexedMesh(b.x0 + 1, b.y0 + 1, b.z0 + 1, b.x1 + 1, b.y1 + 1, b.z1 + 1, false);
+    }
+    
+    // runs the task for each brick on the common pool, and returns the results in the same order
+    // if the calling thread is interrupted while it waits, or a task fails, the tasks that haven't started yet are
+    // called off. the ones that are running finish their brick, which is waited for, and their results are thrown away
+    private static <T> List<T> run(List<Brick> bricks, Function<Brick, T> task, Progress progress) {
+        AtomicBoolean stopped = new AtomicBoolean();
+        // the number of tasks that are running, so that stopping can wait for them
+        AtomicInteger running = new AtomicInteger();
+        List<Future<T>> futures = new ArrayList<>();
+        for (Brick b : bricks) {
+            futures.add(ForkJoinPool.commonPool().submit(() -> {
+                // counted before looking at stopped, so that stop either waits for this task, or this task sees that
+                // it was stopped
+                running.incrementAndGet();
+                try {
+                    if (stopped.get()) {
+                        throw new CancellationException("Mesh cancelled");
+                    }
+                    T ret = task.apply(b);
+                    progress.advance(1);
+                    return ret;
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        synchronized (running) {
+                            running.notifyAll();
+                        }
+                    }
+                }
+            }));
+        }
+        List<T> ret = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                ret.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            stop(stopped, running, futures);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Mesh cancelled");
+        } catch (ExecutionException e) {
+            stop(stopped, running, futures);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return ret;
+    }
+    
+    // calls off the tasks that haven't started, and waits for the ones that have. a brick takes milliseconds, so this
+    // doesn't stop for interrupts, it just passes them on afterwards
+    private static <T> void stop(AtomicBoolean stopped, AtomicInteger running, List<Future<T>> futures) {
+        stopped.set(true);
+        for (Future<T> future : futures) {
+            future.cancel(false);
+        }
+        boolean interrupted = false;
+        synchronized (running) {
+            while (running.get() > 0) {
+                try {
+                    running.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // gets told how many of the steps of a call to mesh are done, from whichever thread finished the last one
+    public interface ProgressListener {
+        void progress(int done, int total);
+    }
+    
+    // counts the steps that are done, for the listener
+    private static class Progress {
+        private final ProgressListener listener;
+        private final int total;
+        private final AtomicInteger done = new AtomicInteger();
+        
+        Progress(ProgressListener listener, int total) {
+            this.listener = listener;
+            this.total = total;
+        }
+        
+        // marks steps as done, including ones that didn't need doing
+        void advance(int steps) {
+            int now = done.addAndGet(steps);
+            if (listener != null) {
+                listener.progress(now, total);
+            }
+        }
+    }
+    
+    // the position of a brick, in bricks from the origin, and the range of its cubes that are meshed
+    private static class Brick {
+        private final int x, y, z;
+        private final int x0, y0, z0, x1, y1, z1;
+        
+        Brick(int x, int y, int z, int x0, int y0, int z0, int x1, int y1, int z1) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.z0 = z0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.z1 = z1;
+        }
+        
+        // the same brick, without the range, to look up its field
+        Brick position() {
+            return new Brick(x, y, z, 0, 0, 0, 0, 0, 0);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Brick)) return false;
+            Brick b = (Brick) o;
+            return x == b.x && y == b.y && z == b.z && x0 == b.x0 && y0 == b.y0 && z0 == b.z0 && x1 == b.x1 && y1 == b.y1 && z1 == b.z1;
+        }
+        
+        @Override
+        public int hashCode() {
+            return ((((((((x * 31 + y) * 31 + z) * 31 + x0) * 31 + y0) * 31 + z0) * 31 + x1) * 31 + y1) * 31 + z1);
+        }
+    }
+}
@@ -134,13 +134,13 @@ public class Commands {
                 String ret = "Evaluates an expression with three variables x, y, and z.\n" + "Expression must not contain any equal signs, nor variables other than x, y, and z.\n" + "Example:\n >>> evalxyz(2x+2y+2z+2, 2, 3, 4)\n 18.0\n";
                 return ret;
             } else if (command.equals("diffx")) {
-                String ret = "Numerically calculates the derivative of the function at the given x value." + "Expression must not contain any equal signs, nor variables other than x.\n" + "Example:\n >>> diffx(2x^2, 2)\n 8.0\n";
+                String ret = "Calculates the derivative of the function at the given x value.\n" + "Expression must not contain any equal signs, nor variables other than x.\n" + "Example:\n >>> diffx(2x^2, 2)\n 8.0\n";
                 return ret;
             } else if (command.equals("diffxy")) {
-                String ret = "Numerically calculates the partial derivatives of the function at the given x and y values." + "Expression must not contain any equal signs, nor variables other than x and y.\n" + "Example:\n >>> diffxy(2x^2+2y^2, 2, 3)\n {8.0, 12.0}\n";
+                String ret = "Calculates the partial derivatives of the function at the given x and y values.\n" + "Expression must not contain any equal signs, nor variables other than x and y.\n" + "Example:\n >>> diffxy(2x^2+2y^2, 2, 3)\n {8.0, 12.0}\n";
                 return ret;
             } else if (command.equals("diffxyz")) {
-                String ret = "Numerically calculates the partial derivatives of the function at the given x, y, and z values." + "Expression must not contain any equal signs, nor variables other than x, y, and z.\n" + "Example:\n >>> diffxyz(2x^2+2y^2+2z^2, 2, 3, 4)\n {8.0, 12.0, 16.0}\n";
+                String ret = "Calculates the partial derivatives of the function at the given x, y, and z values.\n" + "Expression must not contain any equal signs, nor variables other than x, y, and z.\n" + "Example:\n >>> diffxyz(2x^2+2y^2+2z^2, 2, 3, 4)\n {8.0, 12.0, 16.0}\n";
                 return ret;
             }
         }
@@ -1,18 +1,121 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
-import java.util.Stack;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * class for storing and evaluating expressions
  * uses the Parser class to obtain the postfix form of the expression
+ *
+ * the postfix form is compiled once, in the constructor, into a flat program of opcodes. numbers are parsed
+ * ahead of time into a constant pool, and variables and functions are resolved to their own opcodes, so that
+ * evaluating the expression (which MarchingCubes does millions of times per render) never has to look at a
+ * Token or a String, and runs on a reusable double[] stack without allocating anything. on the way the program is
+ * optimized (see compile): constant subtrees are folded, repeated subexpressions are only computed once, and x^2,
+ * x^3 and x^4 are done with multiplications
+ *
+ * there are two tiers that can run the program: the interpreter in this class, and the jit in
+ * ExpressionCompiler, which turns it into a generated class. the jit is used by default, and if it fails for
+ * whatever reason the expression falls back to the interpreter
+ *
+ * grids are evaluated a row at a time with the batch version of evaluate. the interpreter runs each opcode over the
+ * whole row before moving on to the next one, so the cost of interpreting is spread over all of the points in it
+ *
+ * thread safety: an Expression is immutable apart from the interpreter's stack, which evaluate() reuses. so
+ * evaluate() (and everything built on it) must only be called from one thread at a time. code that evaluates
+ * from several threads at once, like MarchingCubes, should give each thread its own evaluator from
+ * newEvaluator(). every evaluator runs the same program, so the results are identical on every thread
+ *
+ * the program can also be run on Intervals instead of numbers, which gives bounds on the value of the expression
+ * over a whole box. the meshers use that to skip boxes that the surface can't go through
+ *
+ * derivatives (diffx, diffxy, diffxyz) are exact, from forward mode automatic differentiation: the program is run
+ * once on dual numbers, which carry the partial derivatives along with the value, instead of evaluating the
+ * expression several times for finite differences. derivative() instead works the derivative out symbolically, with
+ * ExpressionTree, and gives back a new Expression for when the same derivative is needed many times
  */
 public class Expression {
-    private final double eps = 1e-6;
-    private final Queue<Token> postfix;
+    // opcodes of the compiled program. CONST is the only one with an operand, the index into the constant pool
+    static final int CONST = 0;
+    static final int X = 1;
+    static final int Y = 2;
+    static final int Z = 3;
+    static final int ADD = 4;
+    static final int SUB = 5;
+    static final int MUL = 6;
+    static final int DIV = 7;
+    static final int POW = 8;
+    static final int SIN = 9;
+    static final int COS = 10;
+    static final int TAN = 11;
+    static final int ASIN = 12;
+    static final int ACOS = 13;
+    static final int ATAN = 14;
+    static final int LOG = 15;
+    static final int LN = 16;
+    static final int SQRT = 17;
+    static final int ABS = 18;
+    // added by the optimizer. POWI raises to a small integer power (the operand) with multiplications, and STORE and
+    // LOAD copy the top of the stack into a temporary slot (the operand) and push it back, for shared subexpressions
+    static final int POWI = 19;
+    static final int STORE = 20;
+    static final int LOAD = 21;
+    // the integer powers that POWI is used for
+    static final int MAX_POWI = 4;
+    
+    // which tier new expressions are evaluated with. set with -Dexpression.tier=interpreter (or jit) to compare them
+    public static Tier defaultTier = tierProperty();
+    // whether a failed compile has been reported already. it's only reported once, on System.err, since the shell and
+    // the calculator print their results to System.out
+    private static final AtomicBoolean jitFailureReported = new AtomicBoolean();
+    
     private final String expression;
+    private final Queue<Token> postfix;
+    private int[] code;
+    private double[] constants;
+    private int maxStack;
+    // number of temporary slots, which come after the stack in the interpreter's array
+    private int temps;
+    private boolean usesY, usesZ;
+    private final Tier tier;
+    private final ExpressionFunction function;
     
     public Expression(String s) {
-        this.expression = s.replace(" ", "").replace("[", "(").replace("]", ")");
-        this.postfix = Parser.toPostFix(s);
+        this(s, defaultTier);
+    }
+    
+    public Expression(String s, Tier tier) {
+        this(s.replace(" ", "").replace("[", "(").replace("]", ")"), Parser.toPostFix(s), tier);
+    }
+    
+    // makes an expression straight from its postfix form, with s only used to describe it
+    private Expression(String s, Queue<Token> postfix, Tier tier) {
+        this.expression = s;
+        this.postfix = postfix;
+        compile(postfix);
+        
+        ExpressionFunction function = null;
+        if (tier == Tier.JIT) {
+            try {
+                function = ExpressionCompiler.compile(code, constants, maxStack, temps);
+            } catch (Exception | LinkageError e) {
+                if (jitFailureReported.compareAndSet(false, true)) {
+                    System.err.println("Could not compile " + expression + ", falling back to the interpreter: " + e);
+                }
+            }
+        }
+        if (function == null) {
+            tier = Tier.INTERPRETER;
+            function = new Interpreter();
+        }
+        this.tier = tier;
+        this.function = function;
     }
     
     public static void main(String[] args) {
@@ -20,146 +123,672 @@ public class Expression {
         String test = "sin(x) + cos(y) + tan(z)";
         Expression e = new Expression(test);
         System.out.println(e.evaluate(1, 2, 3));
+        
+        // compare the tiers
+        for (Tier tier : Tier.values()) {
+            Expression ex = new Expression("sin(x)*cos(y) + sin(y)*cos(z) + sin(z)*cos(x)", tier);
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                double sum = 0;
+                for (int i = 0; i < 2_000_000; i++) {
+                    sum += ex.evaluate(i * 1e-6, 0.5, -0.5);
+                }
+                System.out.println(ex.getTier() + ": " + (System.nanoTime() - start) / 1_000_000 + "ms (" + sum + ")");
+            }
+        }
     }
     
-    public double evaluate(double x) {
-        // if there is y or z in the postfix, then it is invalid
+    // the tier this expression actually ended up on
+    public Tier getTier() {
+        return tier;
+    }
+    
+    // returns an evaluator that is safe to use from one other thread, alongside this expression and other evaluators
+    // the generated classes have no state, so they are shared, while the interpreter needs its own stack
+    public ExpressionFunction newEvaluator() {
+        if (tier == Tier.JIT) {
+            return function;
+        }
+        return new Interpreter();
+    }
+    
+    // turns the postfix queue into the opcode program, optimizing it on the way
+    // the postfix is read into an exact ExpressionTree, which folds the constant subtrees and merges subexpressions
+    // that appear more than once. then the program is written out from the tree: a shared subexpression is
+    // evaluated the first time it's needed and STOREd into a temporary slot, and LOADed every time after that, and
+    // small integer powers become POWI, which multiplies instead of calling Math.pow
+    private void compile(Queue<Token> postfix) {
         for (Token t : postfix) {
             if (t.getType() == Token.Type.VARIABLE) {
-                if (t.getValue().equals("y") || t.getValue().equals("z")) {
-                    throw new IllegalArgumentException("Invalid expression: " + expression);
+                usesY |= t.getValue().equals("y");
+                usesZ |= t.getValue().equals("z");
+            }
+        }
+        ExpressionTree.Node root;
+        try {
+            root = new ExpressionTree(postfix, true).getRoot();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid expression: " + expression);
+        }
+        
+        // count how many times each node is used, visiting the children of each node only once
+        Map<ExpressionTree.Node, Integer> uses = new HashMap<>();
+        Deque<ExpressionTree.Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            ExpressionTree.Node n = pending.pop();
+            if (uses.merge(n, 1, Integer::sum) == 1) {
+                if (n.a != null) pending.push(n.a);
+                if (n.b != null && powi(n) == 0) pending.push(n.b);
+            }
+        }
+        
+        // write out the program in postfix order. a node is pushed once to write out its children, and again to be
+        // written out itself
+        IntList code = new IntList();
+        List<Double> constants = new ArrayList<>();
+        Map<ExpressionTree.Node, Integer> constantIndices = new HashMap<>();
+        Map<ExpressionTree.Node, Integer> slots = new HashMap<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        int depth = 0, maxDepth = 0;
+        pending.push(root);
+        expanded.push(false);
+        while (!pending.isEmpty()) {
+            ExpressionTree.Node n = pending.pop();
+            boolean childrenDone = expanded.pop();
+            Integer slot = slots.get(n);
+            if (slot != null) {
+                code.add(LOAD);
+                code.add(slot);
+                maxDepth = Math.max(maxDepth, ++depth);
+                continue;
+            }
+            int power = powi(n);
+            if (!childrenDone && n.a != null) {
+                pending.push(n);
+                expanded.push(true);
+                if (n.b != null && power == 0) {
+                    pending.push(n.b);
+                    expanded.push(false);
+                }
+                pending.push(n.a);
+                expanded.push(false);
+                continue;
+            }
+            if (n.op == CONST) {
+                Integer index = constantIndices.get(n);
+                if (index == null) {
+                    index = constants.size();
+                    constants.add(n.value);
+                    constantIndices.put(n, index);
                 }
+                code.add(CONST);
+                code.add(index);
+                depth++;
+            } else if (n.a == null) {
+                code.add(n.op);
+                depth++;
+            } else if (power != 0) {
+                code.add(POWI);
+                code.add(power);
+            } else {
+                code.add(n.op);
+                if (n.b != null) depth--;
             }
+            maxDepth = Math.max(maxDepth, depth);
+            // variables are as cheap to push as a slot
+            if (uses.get(n) > 1 && n.a != null) {
+                slots.put(n, temps);
+                code.add(STORE);
+                code.add(temps++);
+            }
+        }
+        this.code = code.toArray();
+        this.constants = new double[constants.size()];
+        for (int i = 0; i < this.constants.length; i++) {
+            this.constants[i] = constants.get(i);
+        }
+        this.maxStack = maxDepth;
+    }
+    
+    // the exponent if the node is a power that POWI can do, otherwise 0
+    private static int powi(ExpressionTree.Node n) {
+        if (n.op == POW && n.b.op == CONST && n.b.value >= 2 && n.b.value <= MAX_POWI && n.b.value == (int) n.b.value) {
+            return (int) n.b.value;
+        }
+        return 0;
+    }
+    
+    // x ^ n for POWI, with as few multiplications as possible
+    static double powi(double x, int n) {
+        double square = x * x;
+        switch (n) {
+            case 2:
+                return square;
+            case 3:
+                return square * x;
+            default:
+                return square * square;
+        }
+    }
+    
+    public double evaluate(double x) {
+        // if there is y or z in the expression, then it is invalid
+        if (usesY || usesZ) {
+            throw new IllegalArgumentException("Invalid expression: " + expression);
         }
         
         return evaluate(x, 0.0, 0.0);
     }
     
     public double evaluate(double x, double y) {
-        // if there is z in the postfix, then it is invalid
-        for (Token t : postfix) {
-            if (t.getType() == Token.Type.VARIABLE) {
-                if (t.getValue().equals("z")) {
-                    throw new IllegalArgumentException("Invalid expression: " + expression);
-                }
-            }
+        // if there is z in the expression, then it is invalid
+        if (usesZ) {
+            throw new IllegalArgumentException("Invalid expression: " + expression);
         }
         
         return evaluate(x, y, 0.0);
     }
     
     public double evaluate(double x, double y, double z) {
-        // evaluate the postfix
-        Stack<Double> stack = new Stack<Double>();
-        for (Token t : postfix) {
-            switch (t.getType()) {
-                case NUMBER:
-                    stack.push(Double.parseDouble(t.getValue()));
-                    break;
-                case VARIABLE:
-                    if (t.getValue().equals("x")) {
-                        stack.push(x);
-                    } else if (t.getValue().equals("y")) {
-                        stack.push(y);
-                    } else {
-                        stack.push(z);
-                    }
-                    break;
-                case OPERATOR:
-                    double num1 = stack.pop();
-                    double num2 = stack.pop();
-                    switch (t.getValue()) {
-                        case "+":
-                            stack.push(num2 + num1);
-                            break;
-                        case "-":
-                            stack.push(num2 - num1);
-                            break;
-                        case "*":
-                            stack.push(num2 * num1);
-                            break;
-                        case "/":
-                            stack.push(num2 / num1);
-                            break;
-                        case "^":
-                            stack.push(Math.pow(num2, num1));
-                            break;
-                    }
-                    break;
-                case FUNCTION:
-                    double num = stack.pop();
-                    switch (t.getValue()) {
-                        case "sin":
-                            stack.push(Math.sin(num));
-                            break;
-                        case "cos":
-                            stack.push(Math.cos(num));
-                            break;
-                        case "tan":
-                            stack.push(Math.tan(num));
-                            break;
-                        case "asin":
-                            stack.push(Math.asin(num));
-                            break;
-                        case "acos":
-                            stack.push(Math.acos(num));
-                            break;
-                        case "atan":
-                            stack.push(Math.atan(num));
-                            break;
-                        case "log":
-                            stack.push(Math.log10(num));
-                            break;
-                        case "ln":
-                            stack.push(Math.log(num));
-                            break;
-                        case "sqrt":
-                            stack.push(Math.sqrt(num));
-                            break;
-                        case "abs":
-                            stack.push(Math.abs(num));
-                            break;
-                    }
-                    break;
-            }
-        }
-        return stack.pop();
+        return function.eval(x, y, z);
     }
     
-    public Double diffx(double x) {
-        // if y or z is in the postfix, then it is invalid
-        for (Token t : postfix) {
-            if (t.getType() == Token.Type.VARIABLE) {
-                if (t.getValue().equals("y") || t.getValue().equals("z")) {
-                    throw new IllegalArgumentException("Invalid expression: " + expression);
+    // evaluates the expression at (xs[i], ys[i], zs[i]) for every i, writing the results into out
+    // the arrays all need to be the same length. like evaluate, only one thread can use this at a time
+    public void evaluate(double[] xs, double[] ys, double[] zs, float[] out) {
+        if (ys.length != xs.length || zs.length != xs.length || out.length != xs.length) {
+            throw new IllegalArgumentException("Arrays of different lengths");
+        }
+        function.eval(xs, ys, zs, out, 0, xs.length);
+    }
+    
+    private double interpret(double[] stack, double x, double y, double z) {
+        // run the compiled program. sp points at the next free slot of the stack
+        final int[] code = this.code;
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CONST:
+                    stack[sp++] = constants[code[++pc]];
+                    break;
+                case X:
+                    stack[sp++] = x;
+                    break;
+                case Y:
+                    stack[sp++] = y;
+                    break;
+                case Z:
+                    stack[sp++] = z;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case SIN:
+                    stack[sp - 1] = Math.sin(stack[sp - 1]);
+                    break;
+                case COS:
+                    stack[sp - 1] = Math.cos(stack[sp - 1]);
+                    break;
+                case TAN:
+                    stack[sp - 1] = Math.tan(stack[sp - 1]);
+                    break;
+                case ASIN:
+                    stack[sp - 1] = Math.asin(stack[sp - 1]);
+                    break;
+                case ACOS:
+                    stack[sp - 1] = Math.acos(stack[sp - 1]);
+                    break;
+                case ATAN:
+                    stack[sp - 1] = Math.atan(stack[sp - 1]);
+                    break;
+                case LOG:
+                    stack[sp - 1] = Math.log10(stack[sp - 1]);
+                    break;
+                case LN:
+                    stack[sp - 1] = Math.log(stack[sp - 1]);
+                    break;
+                case SQRT:
+                    stack[sp - 1] = Math.sqrt(stack[sp - 1]);
+                    break;
+                case ABS:
+                    stack[sp - 1] = Math.abs(stack[sp - 1]);
+                    break;
+                case POWI:
+                    stack[sp - 1] = powi(stack[sp - 1], code[++pc]);
+                    break;
+                case STORE:
+                    // the slots come after the stack
+                    stack[maxStack + code[++pc]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[maxStack + code[++pc]];
+                    break;
+            }
+        }
+        return stack[sp - 1];
+    }
+    
+    // the same as interpret, but for a whole batch of points at once. each slot of the stack is a column, with one value
+    // per point, so every opcode is only dispatched once per batch instead of once per point. the loops over the
+    // columns are simple enough for HotSpot to vectorize the arithmetic
+    private void interpretColumns(double[][] columns, double[] xs, double[] ys, double[] zs, float[] out, int offset, int length) {
+        final int[] code = this.code;
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            int op = code[pc];
+            if (op <= Z) {
+                double[] column = columns[sp++];
+                if (op == CONST) {
+                    Arrays.fill(column, 0, length, constants[code[++pc]]);
+                } else {
+                    System.arraycopy(op == X ? xs : op == Y ? ys : zs, 0, column, 0, length);
                 }
+                continue;
+            }
+            if (op == LOAD) {
+                System.arraycopy(columns[maxStack + code[++pc]], 0, columns[sp++], 0, length);
+                continue;
+            }
+            if (op == STORE) {
+                System.arraycopy(columns[sp - 1], 0, columns[maxStack + code[++pc]], 0, length);
+                continue;
+            }
+            if (op <= POW) {
+                sp--;
+                double[] a = columns[sp - 1], b = columns[sp];
+                switch (op) {
+                    case ADD:
+                        for (int i = 0; i < length; i++) a[i] = a[i] + b[i];
+                        break;
+                    case SUB:
+                        for (int i = 0; i < length; i++) a[i] = a[i] - b[i];
+                        break;
+                    case MUL:
+                        for (int i = 0; i < length; i++) a[i] = a[i] * b[i];
+                        break;
+                    case DIV:
+                        for (int i = 0; i < length; i++) a[i] = a[i] / b[i];
+                        break;
+                    default: // POW
+                        for (int i = 0; i < length; i++) a[i] = Math.pow(a[i], b[i]);
+                        break;
+                }
+                continue;
+            }
+            double[] a = columns[sp - 1];
+            switch (op) {
+                case SIN:
+                    for (int i = 0; i < length; i++) a[i] = Math.sin(a[i]);
+                    break;
+                case COS:
+                    for (int i = 0; i < length; i++) a[i] = Math.cos(a[i]);
+                    break;
+                case TAN:
+                    for (int i = 0; i < length; i++) a[i] = Math.tan(a[i]);
+                    break;
+                case ASIN:
+                    for (int i = 0; i < length; i++) a[i] = Math.asin(a[i]);
+                    break;
+                case ACOS:
+                    for (int i = 0; i < length; i++) a[i] = Math.acos(a[i]);
+                    break;
+                case ATAN:
+                    for (int i = 0; i < length; i++) a[i] = Math.atan(a[i]);
+                    break;
+                case LOG:
+                    for (int i = 0; i < length; i++) a[i] = Math.log10(a[i]);
+                    break;
+                case LN:
+                    for (int i = 0; i < length; i++) a[i] = Math.log(a[i]);
+                    break;
+                case SQRT:
+                    for (int i = 0; i < length; i++) a[i] = Math.sqrt(a[i]);
+                    break;
+                case ABS:
+                    for (int i = 0; i < length; i++) a[i] = Math.abs(a[i]);
+                    break;
+                case POWI:
+                    int n = code[++pc];
+                    for (int i = 0; i < length; i++) a[i] = powi(a[i], n);
+                    break;
             }
         }
-        // numerically compute gradient
-        Double grad = (evaluate(x + eps) - evaluate(x - eps)) / (2 * eps);
-        return grad;
+        double[] result = columns[0];
+        for (int i = 0; i < length; i++) {
+            out[offset + i] = (float) result[i];
+        }
     }
     
-    public vec2 diffxy(double x, double y) {
-        // if z is in the postfix, then it is invalid
-        for (Token t : postfix) {
-            if (t.getType() == Token.Type.VARIABLE) {
-                if (t.getValue().equals("z")) {
-                    throw new IllegalArgumentException("Invalid expression: " + expression);
+    // evaluates the expression over the box x * y * z, and returns an interval that contains every value it takes there
+    // allocates its own stack, so it can be called from any thread
+    public Interval evaluate(Interval x, Interval y, Interval z) {
+        Interval[] stack = new Interval[maxStack + temps];
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CONST:
+                    stack[sp++] = new Interval(constants[code[++pc]]);
+                    break;
+                case X:
+                    stack[sp++] = x;
+                    break;
+                case Y:
+                    stack[sp++] = y;
+                    break;
+                case Z:
+                    stack[sp++] = z;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].add(stack[sp]);
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].subtract(stack[sp]);
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].multiply(stack[sp]);
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].divide(stack[sp]);
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1].pow(stack[sp]);
+                    break;
+                case SIN:
+                    stack[sp - 1] = stack[sp - 1].sin();
+                    break;
+                case COS:
+                    stack[sp - 1] = stack[sp - 1].cos();
+                    break;
+                case TAN:
+                    stack[sp - 1] = stack[sp - 1].tan();
+                    break;
+                case ASIN:
+                    stack[sp - 1] = stack[sp - 1].asin();
+                    break;
+                case ACOS:
+                    stack[sp - 1] = stack[sp - 1].acos();
+                    break;
+                case ATAN:
+                    stack[sp - 1] = stack[sp - 1].atan();
+                    break;
+                case LOG:
+                    stack[sp - 1] = stack[sp - 1].log();
+                    break;
+                case LN:
+                    stack[sp - 1] = stack[sp - 1].ln();
+                    break;
+                case SQRT:
+                    stack[sp - 1] = stack[sp - 1].sqrt();
+                    break;
+                case ABS:
+                    stack[sp - 1] = stack[sp - 1].abs();
+                    break;
+                case POWI:
+                    // pow with a whole number exponent, which knows that even powers aren't negative
+                    stack[sp - 1] = stack[sp - 1].pow(new Interval(code[++pc]));
+                    break;
+                case STORE:
+                    stack[maxStack + code[++pc]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[maxStack + code[++pc]];
+                    break;
+            }
+        }
+        return stack[sp - 1];
+    }
+    
+    // the derivative of the expression with respect to "x", "y" or "z", as a new expression. it's worked out
+    // symbolically and simplified, so it can be evaluated as many times as needed without going through dual numbers
+    public Expression derivative(String variable) {
+        int op;
+        switch (variable) {
+            case "x":
+                op = X;
+                break;
+            case "y":
+                op = Y;
+                break;
+            case "z":
+                op = Z;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid variable: " + variable);
+        }
+        ExpressionTree tree = new ExpressionTree(postfix, false);
+        ExpressionTree.Node derivative = tree.derivative(op);
+        return new Expression(ExpressionTree.toString(derivative), ExpressionTree.toPostfix(derivative), tier);
+    }
+    
+    // a string that identifies the compiled program, so expressions that only differ in how they were written (2x and
+    // 2 * x, or x+(1+2) and x+3) give the same one. used as a cache key by MeshCache
+    String programKey() {
+        StringBuilder sb = new StringBuilder();
+        for (int c : code) {
+            sb.append(c).append(',');
+        }
+        for (double c : constants) {
+            sb.append(';').append(Long.toHexString(Double.doubleToRawLongBits(c)));
+        }
+        return sb.toString();
+    }
+    
+    // the expression as it was written (or generated, for derivatives)
+    @Override
+    public String toString() {
+        return expression;
+    }
+    
+    // evaluates the expression and its partial derivatives at (x, y, z) in one pass, using forward mode automatic
+    // differentiation. the derivatives are written into gradient, and the value is returned
+    // each slot of the stack is a dual number: the value, followed by its derivatives with respect to x, y and z
+    // allocates its own stack, so it can be called from any thread
+    public double evaluate(double x, double y, double z, double[] gradient) {
+        double[] stack = new double[(maxStack + temps) * 4];
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            int op = code[pc];
+            if (op == STORE) {
+                System.arraycopy(stack, sp - 4, stack, (maxStack + code[++pc]) * 4, 4);
+                continue;
+            }
+            if (op == LOAD) {
+                System.arraycopy(stack, (maxStack + code[++pc]) * 4, stack, sp, 4);
+                sp += 4;
+                continue;
+            }
+            if (op <= Z) {
+                // leaves: a constant has no derivatives, and each variable has a derivative of 1 with respect to itself
+                stack[sp] = op == CONST ? constants[code[++pc]] : op == X ? x : op == Y ? y : z;
+                stack[sp + 1] = op == X ? 1 : 0;
+                stack[sp + 2] = op == Y ? 1 : 0;
+                stack[sp + 3] = op == Z ? 1 : 0;
+                sp += 4;
+                continue;
+            }
+            if (op <= POW) {
+                sp -= 4;
+                int a = sp - 4, b = sp;
+                double u = stack[a], v = stack[b];
+                switch (op) {
+                    case ADD:
+                        stack[a] = u + v;
+                        for (int i = 1; i <= 3; i++) stack[a + i] += stack[b + i];
+                        break;
+                    case SUB:
+                        stack[a] = u - v;
+                        for (int i = 1; i <= 3; i++) stack[a + i] -= stack[b + i];
+                        break;
+                    case MUL:
+                        stack[a] = u * v;
+                        for (int i = 1; i <= 3; i++) stack[a + i] = chain(v, stack[a + i]) + chain(u, stack[b + i]);
+                        break;
+                    case DIV:
+                        // (u / v)' = (u' - (u / v) v') / v
+                        double q = u / v;
+                        stack[a] = q;
+                        for (int i = 1; i <= 3; i++) stack[a + i] = (stack[a + i] - chain(q, stack[b + i])) / v;
+                        break;
+                    case POW:
+                        // (u ^ v)' = v u^(v - 1) u' + u^v ln(u) v'. the terms are only used when u' or v' aren't 0,
+                        // so that powers of negative numbers with a constant exponent still work
+                        double p = Math.pow(u, v);
+                        stack[a] = p;
+                        for (int i = 1; i <= 3; i++) {
+                            double du = stack[a + i], dv = stack[b + i];
+                            stack[a + i] = (du == 0 ? 0 : v * Math.pow(u, v - 1) * du) + (dv == 0 ? 0 : p * Math.log(u) * dv);
+                        }
+                        break;
                 }
+                continue;
+            }
+            // functions: f(u)' = f'(u) u'
+            int a = sp - 4;
+            double u = stack[a];
+            double derivative;
+            switch (op) {
+                case SIN:
+                    stack[a] = Math.sin(u);
+                    derivative = Math.cos(u);
+                    break;
+                case COS:
+                    stack[a] = Math.cos(u);
+                    derivative = -Math.sin(u);
+                    break;
+                case TAN:
+                    stack[a] = Math.tan(u);
+                    derivative = 1 / (Math.cos(u) * Math.cos(u));
+                    break;
+                case ASIN:
+                    stack[a] = Math.asin(u);
+                    derivative = 1 / Math.sqrt(1 - u * u);
+                    break;
+                case ACOS:
+                    stack[a] = Math.acos(u);
+                    derivative = -1 / Math.sqrt(1 - u * u);
+                    break;
+                case ATAN:
+                    stack[a] = Math.atan(u);
+                    derivative = 1 / (1 + u * u);
+                    break;
+                case LOG:
+                    stack[a] = Math.log10(u);
+                    derivative = 1 / (u * Math.log(10));
+                    break;
+                case LN:
+                    stack[a] = Math.log(u);
+                    derivative = 1 / u;
+                    break;
+                case SQRT:
+                    stack[a] = Math.sqrt(u);
+                    derivative = 1 / (2 * stack[a]);
+                    break;
+                case POWI:
+                    int n = code[++pc];
+                    stack[a] = powi(u, n);
+                    derivative = n * (n == 2 ? u : powi(u, n - 1));
+                    break;
+                default: // ABS
+                    stack[a] = Math.abs(u);
+                    derivative = Math.signum(u);
+                    break;
             }
+            for (int i = 1; i <= 3; i++) stack[a + i] = chain(derivative, stack[a + i]);
         }
-        // numerically compute gradient
-        Double gradx = (evaluate(x + eps, y) - evaluate(x - eps, y)) / (2 * eps);
-        Double grady = (evaluate(x, y + eps) - evaluate(x, y - eps)) / (2 * eps);
-        return new vec2(gradx, grady);
+        gradient[0] = stack[sp - 3];
+        gradient[1] = stack[sp - 2];
+        gradient[2] = stack[sp - 1];
+        return stack[sp - 4];
+    }
+    
+    // multiplies a derivative by a factor from the chain rule. a derivative of 0 stays 0 even if the factor is
+    // infinite or NaN, since the expression doesn't depend on that variable there (like sqrt(y) with respect to x)
+    private static double chain(double factor, double derivative) {
+        return derivative == 0 ? 0 : factor * derivative;
+    }
+    
+    public Double diffx(double x) {
+        // if y or z is in the expression, then it is invalid
+        if (usesY || usesZ) {
+            throw new IllegalArgumentException("Invalid expression: " + expression);
+        }
+        double[] gradient = new double[3];
+        evaluate(x, 0.0, 0.0, gradient);
+        return gradient[0];
+    }
+    
+    public vec2 diffxy(double x, double y) {
+        // if z is in the expression, then it is invalid
+        if (usesZ) {
+            throw new IllegalArgumentException("Invalid expression: " + expression);
+        }
+        double[] gradient = new double[3];
+        evaluate(x, y, 0.0, gradient);
+        return new vec2(gradient[0], gradient[1]);
     }
     
     public vec3 diffxyz(double x, double y, double z) {
-        // numerically compute gradient
-        Double gradx = (evaluate(x + eps, y, z) - evaluate(x - eps, y, z)) / (2 * eps);
-        Double grady = (evaluate(x, y + eps, z) - evaluate(x, y - eps, z)) / (2 * eps);
-        Double gradz = (evaluate(x, y, z + eps) - evaluate(x, y, z - eps)) / (2 * eps);
-        return new vec3(gradx, grady, gradz);
+        double[] gradient = new double[3];
+        evaluate(x, y, z, gradient);
+        return new vec3(gradient[0], gradient[1], gradient[2]);
+    }
+    
+    // the interpreter tier, with its own stack so that each thread can have one
+    private class Interpreter implements ExpressionFunction {
+        private final double[] stack = new double[maxStack + temps];
+        // the stack of interpretColumns, made the first time a batch is evaluated and grown to fit
+        private double[][] columns = new double[maxStack + temps][0];
+        
+        @Override
+        public double eval(double x, double y, double z) {
+            return interpret(stack, x, y, z);
+        }
+        
+        @Override
+        public void eval(double[] xs, double[] ys, double[] zs, float[] out, int offset, int length) {
+            if (columns[0].length < length) {
+                columns = new double[maxStack + temps][length];
+            }
+            interpretColumns(columns, xs, ys, zs, out, offset, length);
+        }
+    }
+    
+    // the tier in the expression.tier property. anything that isn't a tier gets a warning on System.err, once, and the
+    // jit, rather than an error that would stop every expression from working
+    private static Tier tierProperty() {
+        String tier = System.getProperty("expression.tier", "jit");
+        try {
+            return Tier.valueOf(tier.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown expression.tier " + tier + ", using jit");
+            return Tier.JIT;
+        }
+    }
+    
+    public enum Tier {
+        INTERPRETER, JIT
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,327 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * the jit tier for Expression
+ * turns the opcode program of an Expression into a class that implements ExpressionFunction, with the whole
+ * expression written out as straight-line JVM bytecode in eval(). the class is defined as a hidden class, so it
+ * can be unloaded along with the Expression, and HotSpot compiles it like any other method, which means calls to
+ * Math.sin, Math.pow and so on get replaced by their intrinsics
+ *
+ * there is no bytecode library available, so this writes the class file by hand. since the generated code has no
+ * branches, the class file doesn't need a StackMapTable, which keeps this small
+ */
+public class ExpressionCompiler {
+    private static final int CLASS_VERSION = 52;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    
+    // jvm instructions used by the generated code
+    private static final int ALOAD_0 = 0x2a;
+    private static final int DLOAD = 0x18;
+    private static final int DSTORE = 0x39;
+    private static final int DUP2 = 0x5c;
+    private static final int WIDE = 0xc4;
+    private static final int DLOAD_1 = 0x27;
+    private static final int DLOAD_3 = 0x29;
+    private static final int LDC2_W = 0x14;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    
+    // compiles the program, throws if anything goes wrong so that the caller can fall back to the interpreter
+    public static ExpressionFunction compile(int[] code, double[] constants, int maxStack, int temps) throws ReflectiveOperationException {
+        byte[] bytes = generate(code, constants, maxStack, temps);
+        MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+        try {
+            return (ExpressionFunction) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ReflectiveOperationException(t);
+        }
+    }
+    
+    private static byte[] generate(int[] code, double[] constants, int maxStack, int temps) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef("ExpressionFunction$Compiled");
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef("ExpressionFunction");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int evalName = pool.utf8("eval");
+        int evalType = pool.utf8("(DDD)D");
+        
+        // the body of eval(x, y, z). x is in local 1, y in local 3, and z in local 5, since doubles take 2 slots
+        // the temporary slots of the program are the locals after that, starting at 7
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case Expression.CONST:
+                    body.write(LDC2_W);
+                    writeShort(body, pool.doubleConstant(constants[code[++pc]]));
+                    break;
+                case Expression.X:
+                    body.write(DLOAD_1);
+                    break;
+                case Expression.Y:
+                    body.write(DLOAD_3);
+                    break;
+                case Expression.Z:
+                    body.write(DLOAD);
+                    body.write(5);
+                    break;
+                case Expression.ADD:
+                    body.write(DADD);
+                    break;
+                case Expression.SUB:
+                    body.write(DSUB);
+                    break;
+                case Expression.MUL:
+                    body.write(DMUL);
+                    break;
+                case Expression.DIV:
+                    body.write(DDIV);
+                    break;
+                case Expression.POW:
+                    invokeMath(body, pool, "pow", "(DD)D");
+                    break;
+                case Expression.SIN:
+                    invokeMath(body, pool, "sin", "(D)D");
+                    break;
+                case Expression.COS:
+                    invokeMath(body, pool, "cos", "(D)D");
+                    break;
+                case Expression.TAN:
+                    invokeMath(body, pool, "tan", "(D)D");
+                    break;
+                case Expression.ASIN:
+                    invokeMath(body, pool, "asin", "(D)D");
+                    break;
+                case Expression.ACOS:
+                    invokeMath(body, pool, "acos", "(D)D");
+                    break;
+                case Expression.ATAN:
+                    invokeMath(body, pool, "atan", "(D)D");
+                    break;
+                case Expression.LOG:
+                    invokeMath(body, pool, "log10", "(D)D");
+                    break;
+                case Expression.LN:
+                    invokeMath(body, pool, "log", "(D)D");
+                    break;
+                case Expression.SQRT:
+                    invokeMath(body, pool, "sqrt", "(D)D");
+                    break;
+                case Expression.ABS:
+                    invokeMath(body, pool, "abs", "(D)D");
+                    break;
+                case Expression.POWI:
+                    // the same multiplications as Expression.powi
+                    int power = code[++pc];
+                    body.write(DUP2);
+                    if (power == 3) {
+                        body.write(DUP2);
+                        body.write(DMUL);
+                    } else {
+                        body.write(DMUL);
+                        if (power == 4) {
+                            body.write(DUP2);
+                        }
+                    }
+                    if (power != 2) {
+                        body.write(DMUL);
+                    }
+                    break;
+                case Expression.STORE:
+                    // keeps the value on the stack
+                    body.write(DUP2);
+                    local(body, DSTORE, 7 + 2 * code[++pc]);
+                    break;
+                case Expression.LOAD:
+                    local(body, DLOAD, 7 + 2 * code[++pc]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode: " + code[pc]);
+            }
+        }
+        body.write(DRETURN);
+        if (body.size() > 65535 || 7 + 2 * temps > 65535) {
+            throw new IllegalArgumentException("Expression too large to compile");
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            pool.write(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            // no fields
+            out.writeShort(0);
+            out.writeShort(2);
+            
+            // public <init>() { super(); }
+            byte[] init = new byte[]{(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN};
+            writeMethod(out, initName, initType, codeName, 1, 1, init);
+            
+            // public double eval(double x, double y, double z)
+            // POWI and STORE duplicate the top of the stack, which needs up to 2 more doubles
+            writeMethod(out, evalName, evalType, codeName, maxStack * 2 + 4, 7 + 2 * temps, body.toByteArray());
+            
+            // no class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            // can't happen, we're writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static void invokeMath(ByteArrayOutputStream body, ConstantPool pool, String name, String type) {
+        body.write(INVOKESTATIC);
+        writeShort(body, pool.methodRef("java/lang/Math", name, type));
+    }
+    
+    // an instruction that loads or stores a local variable, which needs the wide form past local 255
+    private static void local(ByteArrayOutputStream body, int instruction, int index) {
+        if (index > 255) {
+            body.write(WIDE);
+            body.write(instruction);
+            writeShort(body, index);
+        } else {
+            body.write(instruction);
+            body.write(index);
+        }
+    }
+    
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName, int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        // Code attribute: max_stack, max_locals, code, empty exception table, no attributes
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+    
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+    
+    /*
+     * the constant pool of the generated class
+     * entries are deduplicated, so using the same constant or function many times only adds it once
+     */
+    private static class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int METHODREF = 10;
+        private static final int NAME_AND_TYPE = 12;
+        
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(entries);
+        private final Map<String, Integer> indices = new HashMap<>();
+        // constant pool indices start at 1
+        private int count = 1;
+        
+        int utf8(String s) {
+            Integer index = indices.get("utf8 " + s);
+            if (index != null) return index;
+            try {
+                out.writeByte(UTF8);
+                out.writeUTF(s);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            indices.put("utf8 " + s, count);
+            return count++;
+        }
+        
+        int classRef(String name) {
+            Integer index = indices.get("class " + name);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            entry(CLASS, nameIndex);
+            indices.put("class " + name, count);
+            return count++;
+        }
+        
+        int methodRef(String owner, String name, String type) {
+            String key = "method " + owner + "." + name + type;
+            Integer index = indices.get(key);
+            if (index != null) return index;
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            entry(NAME_AND_TYPE, nameIndex, typeIndex);
+            int nameAndType = count++;
+            entry(METHODREF, ownerIndex, nameAndType);
+            indices.put(key, count);
+            return count++;
+        }
+        
+        int doubleConstant(double value) {
+            // key on the raw bits, so that -0.0 and NaN get their own entries
+            String key = "double " + Double.doubleToRawLongBits(value);
+            Integer index = indices.get(key);
+            if (index != null) return index;
+            try {
+                out.writeByte(DOUBLE);
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            indices.put(key, count);
+            // doubles take up 2 entries in the constant pool
+            count += 2;
+            return count - 2;
+        }
+        
+        private void entry(int tag, int... shorts) {
+            try {
+                out.writeByte(tag);
+                for (int s : shorts) {
+                    out.writeShort(s);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        void write(DataOutputStream dest) throws IOException {
+            if (count > 65535) {
+                throw new IllegalArgumentException("Expression too large to compile");
+            }
+            dest.writeShort(count);
+            entries.writeTo(dest);
+        }
+    }
+}
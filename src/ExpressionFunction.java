@@ -0,0 +1,17 @@
+/*
+ * an expression that has been compiled into something that can be evaluated at a point
+ * implemented by the interpreter in Expression, and by the classes generated by ExpressionCompiler
+ */
+@FunctionalInterface
+public interface ExpressionFunction {
+    double eval(double x, double y, double z);
+    
+    // evaluates at (xs[i], ys[i], zs[i]) for every i in [0, length), and writes the results into out starting at offset
+    // the generated classes just call eval in a loop, which HotSpot inlines, while the interpreter overrides this to
+    // run the program over whole columns at once
+    default void eval(double[] xs, double[] ys, double[] zs, float[] out, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[offset + i] = (float) eval(xs[i], ys[i], zs[i]);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/*
+ * expression tree, used by Expression to optimize the program it compiles, and for symbolic differentiation
+ *
+ * the tree is read from the postfix form that Parser.toPostFix makes. derivatives are written back out in the same
+ * form, so they can be compiled like any other expression. nodes use the opcodes of Expression as their type
+ *
+ * every node is made through make(), which simplifies as it goes: operations on constants are folded, things like
+ * x * 1, x + 0 and x ^ 1 are dropped, and identical nodes are only made once (hash consing), so that common
+ * subexpressions are shared instead of being copied. the derivative of each node is also only worked out once
+ *
+ * like the automatic differentiation in Expression, a derivative of 0 stays 0 when it's multiplied by something, even
+ * if that something is infinite or NaN, so x * 0 is simplified to 0. that isn't allowed when the tree is exact, which
+ * is how the compiler uses it: then only simplifications that give exactly the same result for every input (NaN,
+ * infinity and -0 included) are made
+ *
+ * nothing here is recursive, since the postfix of a long expression can be a very deep tree
+ */
+class ExpressionTree {
+    // the token for each opcode, null for constants
+    private static final String[] NAMES = new String[]{
+        null, "x", "y", "z", "+", "-", "*", "/", "^",
+        "sin", "cos", "tan", "asin", "acos", "atan", "log", "ln", "sqrt", "abs"
+    };
+    
+    // every distinct node, so that equal nodes are the same object
+    private final Map<Node, Node> unique = new HashMap<>();
+    // every node in the order they were made. children are always made before their parents
+    private final List<Node> nodes = new ArrayList<>();
+    private final Node zero = constant(0);
+    private final Node one = constant(1);
+    private final Node root;
+    // whether to only make simplifications that never change the result
+    private final boolean exact;
+    
+    public ExpressionTree(Queue<Token> postfix, boolean exact) {
+        this.exact = exact;
+        Deque<Node> stack = new ArrayDeque<>();
+        for (Token t : postfix) {
+            switch (t.getType()) {
+                case NUMBER:
+                    stack.push(constant(Double.parseDouble(t.getValue())));
+                    break;
+                case VARIABLE:
+                    stack.push(make(opcode(t.getValue()), null, null));
+                    break;
+                case OPERATOR:
+                    if (stack.size() < 2) {
+                        throw new IllegalArgumentException("Invalid expression");
+                    }
+                    Node b = stack.pop();
+                    Node a = stack.pop();
+                    stack.push(make(opcode(t.getValue()), a, b));
+                    break;
+                case FUNCTION:
+                    if (stack.isEmpty()) {
+                        throw new IllegalArgumentException("Invalid expression");
+                    }
+                    stack.push(make(opcode(t.getValue()), stack.pop(), null));
+                    break;
+                default:
+                    // unmatched parentheses, same as when compiling
+                    break;
+            }
+        }
+        if (stack.isEmpty()) {
+            throw new IllegalArgumentException("Invalid expression");
+        }
+        root = stack.pop();
+    }
+    
+    private static int opcode(String name) {
+        for (int i = 1; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) return i;
+        }
+        throw new IllegalArgumentException("Invalid expression");
+    }
+    
+    public Node getRoot() {
+        return root;
+    }
+    
+    // the derivative of the whole expression with respect to one of the variable opcodes (Expression.X, Y or Z)
+    public Node derivative(int variable) {
+        Map<Node, Node> derivatives = new HashMap<>();
+        // the nodes are in order, so the derivatives of the children of a node are always known before the node's.
+        // the nodes made along the way are only part of derivatives, and don't need one themselves
+        for (int i = 0; i <= root.id; i++) {
+            Node n = nodes.get(i);
+            Node a = n.a, b = n.b;
+            Node da = a == null ? null : derivatives.get(a);
+            Node db = b == null ? null : derivatives.get(b);
+            Node d;
+            switch (n.op) {
+                case Expression.CONST:
+                    d = zero;
+                    break;
+                case Expression.X:
+                case Expression.Y:
+                case Expression.Z:
+                    d = n.op == variable ? one : zero;
+                    break;
+                case Expression.ADD:
+                    d = make(Expression.ADD, da, db);
+                    break;
+                case Expression.SUB:
+                    d = make(Expression.SUB, da, db);
+                    break;
+                case Expression.MUL:
+                    d = make(Expression.ADD, make(Expression.MUL, da, b), make(Expression.MUL, a, db));
+                    break;
+                case Expression.DIV:
+                    // (a / b)' = (a' - (a / b) b') / b, which reuses the node itself
+                    d = make(Expression.DIV, make(Expression.SUB, da, make(Expression.MUL, n, db)), b);
+                    break;
+                case Expression.POW:
+                    // (a ^ b)' = b a^(b - 1) a' + a^b ln(a) b'. the terms are left out when a' or b' is 0, so that
+                    // powers of negative numbers with a constant exponent still work
+                    Node power = isZero(da) ? zero : make(Expression.MUL, make(Expression.MUL, b,
+                        make(Expression.POW, a, make(Expression.SUB, b, one))), da);
+                    Node exponential = isZero(db) ? zero : make(Expression.MUL, make(Expression.MUL, n,
+                        make(Expression.LN, a, null)), db);
+                    d = make(Expression.ADD, power, exponential);
+                    break;
+                case Expression.SIN:
+                    d = make(Expression.MUL, make(Expression.COS, a, null), da);
+                    break;
+                case Expression.COS:
+                    d = make(Expression.MUL, make(Expression.SUB, zero, make(Expression.SIN, a, null)), da);
+                    break;
+                case Expression.TAN:
+                    d = make(Expression.DIV, da, make(Expression.POW, make(Expression.COS, a, null), constant(2)));
+                    break;
+                case Expression.ASIN:
+                    d = make(Expression.DIV, da, squareRootOfOneMinusSquare(a));
+                    break;
+                case Expression.ACOS:
+                    d = make(Expression.DIV, make(Expression.SUB, zero, da), squareRootOfOneMinusSquare(a));
+                    break;
+                case Expression.ATAN:
+                    d = make(Expression.DIV, da, make(Expression.ADD, one, make(Expression.POW, a, constant(2))));
+                    break;
+                case Expression.LOG:
+                    d = make(Expression.DIV, da, make(Expression.MUL, a, constant(Math.log(10))));
+                    break;
+                case Expression.LN:
+                    d = make(Expression.DIV, da, a);
+                    break;
+                case Expression.SQRT:
+                    d = make(Expression.DIV, da, make(Expression.MUL, constant(2), n));
+                    break;
+                default: // ABS
+                    // |a|' = a / |a| a', which is undefined at 0 like the derivative itself
+                    d = make(Expression.MUL, make(Expression.DIV, a, n), da);
+                    break;
+            }
+            derivatives.put(n, d);
+        }
+        return derivatives.get(root);
+    }
+    
+    private Node squareRootOfOneMinusSquare(Node a) {
+        return make(Expression.SQRT, make(Expression.SUB, one, make(Expression.POW, a, constant(2))), null);
+    }
+    
+    private Node constant(double value) {
+        return intern(new Node(Expression.CONST, value, null, null));
+    }
+    
+    // makes a node, simplifying it if possible. b is null for functions, and both are null for variables
+    private Node make(int op, Node a, Node b) {
+        // fold operations on constants
+        if (a != null && a.op == Expression.CONST && (b == null || b.op == Expression.CONST)) {
+            return constant(fold(op, a.value, b == null ? 0 : b.value));
+        }
+        switch (op) {
+            case Expression.ADD:
+                // -0 + 0 is 0, not -0
+                if (exact) break;
+                if (isZero(a)) return b;
+                if (isZero(b)) return a;
+                break;
+            case Expression.SUB:
+                // x - (-0) isn't x when x is -0
+                if (exact ? b.op == Expression.CONST && Double.compare(b.value, 0.0) == 0 : isZero(b)) return a;
+                if (exact) break;
+                if (a == b) return zero;
+                // 0 - (0 - b) is b
+                if (isZero(a) && b.op == Expression.SUB && isZero(b.a)) return b.b;
+                break;
+            case Expression.MUL:
+                if (isOne(a)) return b;
+                if (isOne(b)) return a;
+                if (!exact && (isZero(a) || isZero(b))) return zero;
+                break;
+            case Expression.DIV:
+                if (isOne(b)) return a;
+                if (!exact && isZero(a)) return zero;
+                break;
+            case Expression.POW:
+                // anything ^ 0 is 1, even NaN
+                if (isZero(b)) return one;
+                if (isOne(b)) return a;
+                break;
+        }
+        // put the operands of + and * in a fixed order, so that a * b and b * a are the same node
+        if ((op == Expression.ADD || op == Expression.MUL) && b.id < a.id) {
+            Node swap = a;
+            a = b;
+            b = swap;
+        }
+        return intern(new Node(op, 0, a, b));
+    }
+    
+    private Node intern(Node node) {
+        Node existing = unique.get(node);
+        if (existing != null) {
+            return existing;
+        }
+        node.id = nodes.size();
+        unique.put(node, node);
+        nodes.add(node);
+        return node;
+    }
+    
+    // the same operations as the interpreter in Expression, so folding doesn't change the result
+    private static double fold(int op, double a, double b) {
+        switch (op) {
+            case Expression.ADD:
+                return a + b;
+            case Expression.SUB:
+                return a - b;
+            case Expression.MUL:
+                return a * b;
+            case Expression.DIV:
+                return a / b;
+            case Expression.POW:
+                return Math.pow(a, b);
+            case Expression.SIN:
+                return Math.sin(a);
+            case Expression.COS:
+                return Math.cos(a);
+            case Expression.TAN:
+                return Math.tan(a);
+            case Expression.ASIN:
+                return Math.asin(a);
+            case Expression.ACOS:
+                return Math.acos(a);
+            case Expression.ATAN:
+                return Math.atan(a);
+            case Expression.LOG:
+                return Math.log10(a);
+            case Expression.LN:
+                return Math.log(a);
+            case Expression.SQRT:
+                return Math.sqrt(a);
+            default: // ABS
+                return Math.abs(a);
+        }
+    }
+    
+    private static boolean isZero(Node n) {
+        return n.op == Expression.CONST && n.value == 0;
+    }
+    
+    private static boolean isOne(Node n) {
+        return n.op == Expression.CONST && n.value == 1;
+    }
+    
+    // writes a node out in postfix form. shared nodes are written out every time they are used
+    public static Queue<Token> toPostfix(Node root) {
+        Queue<Token> postfix = new LinkedList<>();
+        // a node is pushed once to visit its children, and again to be written out after them
+        Deque<Node> stack = new ArrayDeque<>();
+        Deque<Boolean> visited = new ArrayDeque<>();
+        stack.push(root);
+        visited.push(false);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            if (visited.pop() || n.a == null) {
+                postfix.add(token(n));
+                continue;
+            }
+            stack.push(n);
+            visited.push(true);
+            if (n.b != null) {
+                stack.push(n.b);
+                visited.push(false);
+            }
+            stack.push(n.a);
+            visited.push(false);
+        }
+        return postfix;
+    }
+    
+    private static Token token(Node n) {
+        if (n.op == Expression.CONST) {
+            return new Token(Double.toString(n.value), Token.Type.NUMBER);
+        }
+        if (n.op <= Expression.Z) {
+            return new Token(NAMES[n.op], Token.Type.VARIABLE);
+        }
+        if (n.op <= Expression.POW) {
+            return new Token(NAMES[n.op], Token.Type.OPERATOR);
+        }
+        return new Token(NAMES[n.op], Token.Type.FUNCTION);
+    }
+    
+    // writes a node out as a readable infix string, with brackets around every operation
+    public static String toString(Node root) {
+        Deque<String> operands = new ArrayDeque<>();
+        for (Token t : toPostfix(root)) {
+            switch (t.getType()) {
+                case OPERATOR:
+                    String b = operands.pop();
+                    String a = operands.pop();
+                    operands.push("(" + a + t.getValue() + b + ")");
+                    break;
+                case FUNCTION:
+                    operands.push(t.getValue() + "(" + operands.pop() + ")");
+                    break;
+                default:
+                    // negative numbers get brackets, so that the parser reads them as (0-n)
+                    operands.push(t.getValue().startsWith("-") ? "(" + t.getValue() + ")" : t.getValue());
+                    break;
+            }
+        }
+        String s = operands.pop();
+        // the brackets around the whole thing aren't needed
+        return s.startsWith("(") && root.op >= Expression.ADD && root.op <= Expression.POW ? s.substring(1, s.length() - 1) : s;
+    }
+    
+    // a node of the tree. equal nodes are the same object, so children are compared by reference
+    static class Node {
+        final int op;
+        // only for constants
+        final double value;
+        final Node a, b;
+        // the position of the node in the order they were made
+        int id;
+        
+        Node(int op, double value, Node a, Node b) {
+            this.op = op;
+            this.value = value;
+            this.a = a;
+            this.b = b;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            Node n = (Node) o;
+            return op == n.op && Double.doubleToLongBits(value) == Double.doubleToLongBits(n.value) && a == n.a && b == n.b;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = op;
+            h = h * 31 + Double.hashCode(value);
+            h = h * 31 + System.identityHashCode(a);
+            h = h * 31 + System.identityHashCode(b);
+            return h;
+        }
+    }
+}
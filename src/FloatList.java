@@ -0,0 +1,64 @@
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/*
+ * growable list of primitive floats
+ * used instead of ArrayList<Float> when building meshes, so that adding a vertex doesn't allocate a Float for
+ * every coordinate. each worker fills its own list, and the lists are stitched together at the end
+ */
+class FloatList {
+    private float[] data;
+    private int size;
+    
+    public FloatList() {
+        this(1024);
+    }
+    
+    public FloatList(int capacity) {
+        data = new float[Math.max(capacity, 16)];
+    }
+    
+    public void add(float f) {
+        if (size == data.length) {
+            grow(size + 1);
+        }
+        data[size++] = f;
+    }
+    
+    public void add(float a, float b, float c) {
+        if (size + 3 > data.length) {
+            grow(size + 3);
+        }
+        data[size] = a;
+        data[size + 1] = b;
+        data[size + 2] = c;
+        size += 3;
+    }
+    
+    public float get(int i) {
+        return data[i];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    // copies the contents into dest starting at offset, and returns the offset just after the copied floats
+    public int copyTo(float[] dest, int offset) {
+        System.arraycopy(data, 0, dest, offset, size);
+        return offset + size;
+    }
+    
+    // the same, into a buffer at its position, which is moved past the copied floats
+    public void copyTo(FloatBuffer dest) {
+        dest.put(data, 0, size);
+    }
+    
+    public float[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+    
+    private void grow(int minCapacity) {
+        data = Arrays.copyOf(data, Math.max(minCapacity, data.length * 2));
+    }
+}
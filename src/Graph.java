@@ -1,26 +1,70 @@
 import javax.swing.*;
 import javax.swing.border.CompoundBorder;
 import java.awt.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 
 /*
  * graphing "applet"
  * contains equation input, boundary input, and the renderer itself
  * acts as a frontend for the Renderer class, which itself is a frontend for the MarchingCubes class
+ *
+ * meshes are cached in memory and on disk (in ~/.hlicsgraphingcalc, or the directory in the graph.cache property), and
+ * the inputs of the last graph are saved there too. the meshes on disk are kept to MeshCache.DEFAULT_DISK_BUDGET (1 GB),
+ * dropping the ones used least recently. when the program starts again, the last graph is put back,
+ * straight from the mesh file
+ *
+ * rendering happens in the background, in a SwingWorker, so the rest of the window keeps working while a big graph is
+ * made. the inputs are read on the event dispatch thread, everything from parsing them to making the mesh runs on the
+ * worker, with its progress shown under the render button, and the finished mesh is handed to the Renderer back on
+ * the event dispatch thread. rendering again before that cancels the render that's running. there is only ever one
+ * Renderer, made for the first graph, and later graphs replace the mesh and bounds in it
+ *
+ * big graphs are rendered progressively: first at a resolution of PREVIEW_RESOLUTION, then twice that, and so on up to
+ * the resolution asked for. each level is shown as soon as it's done, by swapping its mesh into the renderer that's
+ * already there, so the camera stays where it is. the finer levels reuse the points of the coarser ones (see
+ * BrickGrid.coarser), so the previews cost very little on top of the full render
  */
 public class Graph extends JPanel {
+    private static final Path CACHE_DIRECTORY = Paths.get(System.getProperty("graph.cache",
+        Paths.get(System.getProperty("user.home"), ".hlicsgraphingcalc").toString()));
+    // the inputs of the last graph that was rendered
+    private static final Path SESSION = CACHE_DIRECTORY.resolve("session.properties");
+    // meshes that have already been rendered, so going back to an earlier graph doesn't redo the marching cubes
+    private static final MeshCache CACHE = new MeshCache(Runtime.getRuntime().maxMemory() / 4, CACHE_DIRECTORY);
+    // the resolution of the first preview of a graph. graphs that aren't at least twice this don't get previews
+    private static final int PREVIEW_RESOLUTION = 32;
+    // how much finer or coarser than the resolution asked for the grid from the last render can be and still be used
+    private static final int MAX_SPACING_CHANGE = 2;
     private final JTextField ix1;
     private final JTextField ix2;
     private final JTextField iy1;
     private final JTextField iy2;
     private final JTextField iz1;
     private final JTextField iz2;
+    private final JTextField ires;
     private final JTextArea equation;
     private final JButton render;
+    private final JProgressBar progress;
     private final JPanel boundaries;
     private final Insets inset = new Insets(5, 5, 5, 5);
     private Renderer r;
     private JPanel input;
+    // the grid of the last render, kept so that changing the bounds only meshes the parts of the domain that are new,
+    // and the resolution input it was made for
+    private BrickGrid bricks;
+    private String bricksResolution;
+    // the render that's running, or null
+    private RenderWorker worker;
     
     public Graph() {
         super();
@@ -34,15 +78,20 @@ public class Graph extends JPanel {
         iy2 = new JTextField();
         iz1 = new JTextField();
         iz2 = new JTextField();
+        ires = new JTextField(Integer.toString(MarchingCubes.DEFAULT_RESOLUTION));
         render = new JButton("Render");
+        progress = new JProgressBar(0, 100);
+        progress.setStringPainted(true);
+        progress.setString("");
         r = new Renderer();
-       
+        
         /*
         equation:
         <input>
         ix1: <input> ix2: <input>
         iy1: <input> iy2: <input>
         iz1: <input> iz2: <input>
+        res: <input>
         <render button>
         
         top level: gridlayout with 5 rows (1 blank row at bottom)
@@ -105,7 +154,7 @@ public class Graph extends JPanel {
         input.add(equation, c);
         c.gridy = 2;
         boundaries = new JPanel();
-        boundaries.setLayout(new GridLayout(3, 4));
+        boundaries.setLayout(new GridLayout(4, 4));
         boundaries.add(new JLabel("x1:"));
         boundaries.add(ix1);
         boundaries.add(new JLabel("x2:"));
@@ -118,6 +167,11 @@ public class Graph extends JPanel {
         boundaries.add(iz1);
         boundaries.add(new JLabel("z2:"));
         boundaries.add(iz2);
+        // resolution of the marching cubes grid, either one number for the longest axis, or one for each axis
+        boundaries.add(new JLabel("res:"));
+        boundaries.add(ires);
+        boundaries.add(new JLabel());
+        boundaries.add(new JLabel());
         c.weighty = 0.3;
         input.add(boundaries, c);
         c.gridy = 3;
@@ -125,11 +179,61 @@ public class Graph extends JPanel {
         render.addActionListener(e -> render());
         input.add(render, c);
         c.gridy = 4;
+        input.add(progress, c);
+        c.gridy = 5;
         c.weighty = 2.5;
         input.add(new JLabel(), c);
         this.add(input, BorderLayout.WEST);
         this.add(r, BorderLayout.CENTER);
         this.setVisible(true);
+        
+        // put the last graph back, once the window is up
+        if (loadSession()) {
+            SwingUtilities.invokeLater(this::render);
+        }
+    }
+    
+    // fills in the inputs from the saved session, returns whether there was one
+    private boolean loadSession() {
+        if (!Files.isRegularFile(SESSION)) {
+            return false;
+        }
+        Properties session = new Properties();
+        try (Reader in = Files.newBufferedReader(SESSION, StandardCharsets.UTF_8)) {
+            session.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+        equation.setText(session.getProperty("equation", ""));
+        ix1.setText(session.getProperty("x1", ""));
+        ix2.setText(session.getProperty("x2", ""));
+        iy1.setText(session.getProperty("y1", ""));
+        iy2.setText(session.getProperty("y2", ""));
+        iz1.setText(session.getProperty("z1", ""));
+        iz2.setText(session.getProperty("z2", ""));
+        ires.setText(session.getProperty("res", Integer.toString(MarchingCubes.DEFAULT_RESOLUTION)));
+        return true;
+    }
+    
+    // saves the inputs of the graph that was just rendered
+    private void saveSession(String equation, String[] bounds, String res) {
+        Properties session = new Properties();
+        session.setProperty("equation", equation);
+        session.setProperty("x1", bounds[0]);
+        session.setProperty("x2", bounds[1]);
+        session.setProperty("y1", bounds[2]);
+        session.setProperty("y2", bounds[3]);
+        session.setProperty("z1", bounds[4]);
+        session.setProperty("z2", bounds[5]);
+        session.setProperty("res", res);
+        try {
+            Files.createDirectories(CACHE_DIRECTORY);
+            try (Writer out = Files.newBufferedWriter(SESSION, StandardCharsets.UTF_8)) {
+                session.store(out, "last graph");
+            }
+        } catch (IOException e) {
+            // the session is only a convenience
+        }
     }
     
     public static void main(String[] args) {
@@ -140,58 +244,220 @@ public class Graph extends JPanel {
         frame.setVisible(true);
     }
     
+    // starts rendering the graph from the inputs in the background, cancelling the render that's running, if any
     private void render() {
-        Expression ex1, ex2, ey1, ey2, ez1, ez2, equation;
-        try {
-            ex1 = new Expression(ix1.getText());
-            ex2 = new Expression(ix2.getText());
-            ey1 = new Expression(iy1.getText());
-            ey2 = new Expression(iy2.getText());
-            ez1 = new Expression(iz1.getText());
-            ez2 = new Expression(iz2.getText());
-        } catch (Exception e) {
-            // joptionpane
-            JOptionPane.showMessageDialog(this, "Invalid boundaries");
+        if (worker != null) {
+            worker.cancel(true);
+        }
+        worker = new RenderWorker(equation.getText(), new String[]{
+            ix1.getText(), ix2.getText(), iy1.getText(), iy2.getText(), iz1.getText(), iz2.getText()
+        }, ires.getText());
+        worker.addPropertyChangeListener(e -> {
+            if (e.getSource() == worker && "progress".equals(e.getPropertyName())) {
+                progress.setValue((Integer) e.getNewValue());
+                progress.setString("Rendering " + e.getNewValue() + "%");
+            }
+        });
+        progress.setValue(0);
+        progress.setString("Rendering");
+        worker.execute();
+    }
+    
+    // shows the mesh. the renderer is made the first time, and after that the mesh and the bounds are replaced in it,
+    // which keeps its opengl context, shaders and camera
+    private void show(Mesh mesh, double x1, double y1, double z1, double x2, double y2, double z2) throws IOException {
+        if (!r.isEmpty()) {
+            r.setMesh(x1, y1, z1, x2, y2, z2, mesh);
             return;
         }
+        this.remove(r);
+        this.setVisible(false);
+        r = new Renderer(x1, y1, z1, x2, y2, z2, mesh);
+        r.setBorder(new CompoundBorder(
+            BorderFactory.createLineBorder(new Color(240, 240, 240), 5),
+            BorderFactory.createLineBorder(new Color(102, 102, 102), 2)
+        ));
+        this.add(r, BorderLayout.CENTER);
+        r.setVisible(true);
+        this.setVisible(true);
+    }
+    
+    // the brick grid to render on. the one from the last render is kept if it's for the same function and the same
+    // resolution input, so that it keeps its spacing when only the bounds change, even though the resolution worked out
+    // from the bounds changes a little with them (one more unit along x is a few more cubes along it). only when the
+    // spacing is off by more than a factor of MAX_SPACING_CHANGE on some axis, after zooming a long way in or out, is a
+    // new one started, with its spacing set by the resolution
+    private synchronized BrickGrid bricks(Expression equation, String resText, double x1, double y1, double z1, double x2, double y2, double z2, int[] res) {
+        String resolution = resText.replace(" ", "");
+        if (bricks != null && bricks.getExpression().programKey().equals(equation.programKey())
+            && resolution.equals(bricksResolution) && similar(bricks.resolution(x1, y1, z1, x2, y2, z2), res)) {
+            return bricks;
+        }
+        bricks = new BrickGrid(equation, Math.min(x1, x2), Math.min(y1, y2), Math.min(z1, z2),
+            Math.abs(x2 - x1) / res[0], Math.abs(y2 - y1) / res[1], Math.abs(z2 - z1) / res[2]);
+        bricksResolution = resolution;
+        return bricks;
+    }
+    
+    // whether the resolution a grid has is close enough to the one asked for to keep using it
+    private static boolean similar(int[] has, int[] asked) {
+        for (int i = 0; i < 3; i++) {
+            if (has[i] > asked[i] * MAX_SPACING_CHANGE || has[i] * MAX_SPACING_CHANGE < asked[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // reads the resolution input. one number is used for the longest axis, and the other axes are scaled so the cubes
+    // stay roughly cubes. three numbers (separated by commas) set each axis directly. returns null if it's invalid
+    private static int[] resolution(String text, double x1, double y1, double z1, double x2, double y2, double z2) {
+        String[] parts = text.replace(" ", "").split(",");
         try {
-            String expr = this.equation.getText();
+            if (parts.length == 1) {
+                int res = Integer.parseInt(parts[0]);
+                return res < 1 ? null : MarchingCubes.adaptiveResolution(x1, y1, z1, x2, y2, z2, res);
+            } else if (parts.length == 3) {
+                int[] res = new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+                return res[0] < 1 || res[1] < 1 || res[2] < 1 ? null : res;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return null;
+    }
+    
+    // a message for the user about what's wrong with the inputs
+    private static class InvalidInputException extends Exception {
+        InvalidInputException(String message) {
+            super(message);
+        }
+    }
+    
+    // parses the inputs and makes the mesh in the background, then shows it on the event dispatch thread. the previews
+    // are published as they're made
+    private class RenderWorker extends SwingWorker<Mesh, Mesh> {
+        private final String text;
+        private final String[] boundsText;
+        private final String resText;
+        // the bounds, once they're parsed
+        private final double[] bounds = new double[6];
+        // whether a preview has been put into a new renderer already, after which the rest replace its mesh
+        private boolean shown;
+        
+        RenderWorker(String text, String[] boundsText, String resText) {
+            this.text = text;
+            this.boundsText = boundsText;
+            this.resText = resText;
+        }
+        
+        @Override
+        protected Mesh doInBackground() throws InvalidInputException {
+            try {
+                for (int i = 0; i < 6; i++) {
+                    bounds[i] = (float) new Expression(boundsText[i]).evaluate(0);
+                }
+            } catch (Exception e) {
+                throw new InvalidInputException("Invalid boundaries");
+            }
+            double x1 = bounds[0], x2 = bounds[1], y1 = bounds[2], y2 = bounds[3], z1 = bounds[4], z2 = bounds[5];
+            
+            String expr = text;
             // if there is 2 or more equal signs, invalid
             if (expr.split("=").length > 2) {
-                JOptionPane.showMessageDialog(this, "Invalid equation or expression");
-                return;
+                throw new InvalidInputException("Invalid equation or expression");
             }
             // if there is 1 equal sign, move everything to the left side
             if (expr.split("=").length == 2) {
                 expr = expr.split("=")[0] + "-(" + expr.split("=")[1] + ")";
             }
-            equation = new Expression(expr);
-            float x1 = (float) ex1.evaluate(0);
-            float x2 = (float) ex2.evaluate(0);
-            float y1 = (float) ey1.evaluate(0);
-            float y2 = (float) ey2.evaluate(0);
-            float z1 = (float) ez1.evaluate(0);
-            float z2 = (float) ez2.evaluate(0);
+            Expression equation;
+            try {
+                equation = new Expression(expr);
+            } catch (Exception e) {
+                throw new InvalidInputException("Invalid equation or expression");
+            }
             
-            // generate the vertices of the mesh extracted from the function with marching cubes
-            MarchingCubes mc = new MarchingCubes(equation, x1, y1, z1, x2, y2, z2);
-            mc.generateScalarField();
-            ArrayList<Float> vertices = mc.extractMesh();
+            int[] res = resolution(resText, x1, y1, z1, x2, y2, z2);
+            if (res == null) {
+                throw new InvalidInputException("Invalid resolution");
+            }
             
-            // add new renderer
-            this.remove(r);
-            this.setVisible(false);
-            r = new Renderer(x1, y1, z1, x2, y2, z2, vertices);
-            r.setBorder(new CompoundBorder(
-                BorderFactory.createLineBorder(new Color(240, 240, 240), 5),
-                BorderFactory.createLineBorder(new Color(102, 102, 102), 2)
-            ));
-            this.add(r, BorderLayout.CENTER);
-            r.startAnimation();
-            r.setVisible(true);
-            this.setVisible(true);
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Invalid equation or expression");
+            // generate the vertices of the mesh extracted from the function with marching cubes. the mesh is cached under
+            // the resolution the grid really has over the bounds, which is the one asked for unless the grid was kept
+            // from the last render
+            BrickGrid grid = bricks(equation, resText, x1, y1, z1, x2, y2, z2, res);
+            int[] finest = grid.resolution(x1, y1, z1, x2, y2, z2);
+            Mesh mesh = CACHE.get(equation, x1, y1, z1, x2, y2, z2, finest[0], finest[1], finest[2]);
+            if (mesh == null) {
+                // the grids to mesh, coarsest first, halving the resolution down to the preview resolution
+                List<BrickGrid> levels = new ArrayList<>();
+                levels.add(grid);
+                for (int n = Math.max(finest[0], Math.max(finest[1], finest[2])) / 2; n >= PREVIEW_RESOLUTION; n /= 2) {
+                    levels.add(0, levels.get(0).coarser());
+                }
+                if (!BrickGrid.fitsInMemory(levels, x1, y1, z1, x2, y2, z2)) {
+                    throw new InvalidInputException("Resolution is too high, there isn't enough memory");
+                }
+                for (int i = 0; i < levels.size(); i++) {
+                    int level = i;
+                    mesh = levels.get(i).mesh(x1, y1, z1, x2, y2, z2,
+                        (done, total) -> setProgress((level * 100 + done * 100 / total) / levels.size()));
+                    if (i < levels.size() - 1) {
+                        publish(mesh);
+                    }
+                }
+                // only the mesh at the resolution asked for is cached, the previews are only there until it's done
+                CACHE.put(equation, x1, y1, z1, x2, y2, z2, finest[0], finest[1], finest[2], mesh);
+            }
+            return mesh;
+        }
+        
+        @Override
+        protected void process(List<Mesh> previews) {
+            if (isCancelled() || worker != this) {
+                return;
+            }
+            // only the newest one is worth showing
+            Mesh mesh = previews.get(previews.size() - 1);
+            if (shown) {
+                r.updateMesh(mesh);
+                return;
+            }
+            try {
+                show(mesh, bounds[0], bounds[2], bounds[4], bounds[1], bounds[3], bounds[5]);
+                shown = true;
+            } catch (IOException e) {
+                // the final mesh will be shown anyway
+            }
+        }
+        
+        @Override
+        protected void done() {
+            // a newer render has taken over
+            if (isCancelled() || worker != this) {
+                return;
+            }
+            worker = null;
+            progress.setValue(0);
+            progress.setString("");
+            // how well the cache is doing, for anyone who hovers over the progress bar
+            progress.setToolTipText(CACHE.toString());
+            try {
+                if (shown) {
+                    r.updateMesh(get());
+                } else {
+                    show(get(), bounds[0], bounds[2], bounds[4], bounds[1], bounds[3], bounds[5]);
+                }
+                saveSession(text, boundsText, resText);
+            } catch (ExecutionException e) {
+                String message = e.getCause() instanceof InvalidInputException ? e.getCause().getMessage() : "Invalid equation or expression";
+                JOptionPane.showMessageDialog(Graph.this, message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                JOptionPane.showMessageDialog(Graph.this, "Invalid equation or expression");
+            }
         }
     }
 }
@@ -0,0 +1,41 @@
+import java.util.Arrays;
+
+/*
+ * growable list of primitive ints, the same as FloatList
+ * used for the indices of an indexed mesh
+ */
+class IntList {
+    private int[] data;
+    private int size;
+    
+    public IntList() {
+        this(1024);
+    }
+    
+    public IntList(int capacity) {
+        data = new int[Math.max(capacity, 16)];
+    }
+    
+    public void add(int i) {
+        if (size == data.length) {
+            grow(size + 1);
+        }
+        data[size++] = i;
+    }
+    
+    public int get(int i) {
+        return data[i];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+    
+    private void grow(int minCapacity) {
+        data = Arrays.copyOf(data, Math.max(minCapacity, data.length * 2));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * closed interval of real numbers [lo, hi], for evaluating an Expression over a whole box at once
+ *
+ * every operation returns an interval that contains every value the operation can take on its inputs, so if the
+ * result of an expression doesn't contain 0, the surface can't go through the box. the bounds of a result are rounded
+ * outwards by an ulp, so that rounding errors can't make it too narrow. results of operations on single points
+ * aren't rounded, since they are computed exactly the same way as when evaluating the expression at that point
+ *
+ * functions evaluated outside of their domain (and things like infinity - infinity) give NaN, which the meshers treat
+ * as a positive value. so every interval also remembers whether the expression might be NaN somewhere in the box, on
+ * top of the values in [lo, hi]. if it is NaN everywhere in the box, the result is EMPTY
+ */
+class Interval {
+    public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    public static final Interval EMPTY = new Interval(Double.NaN, Double.NaN, true);
+    private static final double TWO_PI = 2 * Math.PI;
+    
+    public final double lo, hi;
+    // whether the value might also be NaN
+    public final boolean undefined;
+    
+    public Interval(double lo, double hi) {
+        this(lo, hi, false);
+    }
+    
+    public Interval(double value) {
+        this(value, value, false);
+    }
+    
+    private Interval(double lo, double hi, boolean undefined) {
+        this.lo = lo;
+        this.hi = hi;
+        this.undefined = undefined;
+    }
+    
+    // makes an interval from bounds that were just computed, rounding them outwards
+    private static Interval of(double lo, double hi, boolean undefined) {
+        if (Double.isNaN(lo) || Double.isNaN(hi)) {
+            // infinities cancelled out while computing the bounds
+            return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+        }
+        if (lo == hi) {
+            return new Interval(lo, hi, undefined);
+        }
+        return new Interval(Math.nextDown(lo), Math.nextUp(hi), undefined);
+    }
+    
+    public boolean isEmpty() {
+        return Double.isNaN(lo);
+    }
+    
+    public boolean contains(double value) {
+        return lo <= value && value <= hi;
+    }
+    
+    public boolean isPoint() {
+        return lo == hi;
+    }
+    
+    // whether one of the bounds is infinite, in which case arithmetic on it can give NaN (infinity - infinity, etc)
+    private boolean isUnbounded() {
+        return Double.isInfinite(lo) || Double.isInfinite(hi);
+    }
+    
+    private boolean undefined(Interval other) {
+        return undefined || other.undefined || isUnbounded() || other.isUnbounded();
+    }
+    
+    public Interval add(Interval other) {
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+        return of(lo + other.lo, hi + other.hi, undefined(other));
+    }
+    
+    public Interval subtract(Interval other) {
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+        return of(lo - other.hi, hi - other.lo, undefined(other));
+    }
+    
+    public Interval multiply(Interval other) {
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+        double a = product(lo, other.lo), b = product(lo, other.hi), c = product(hi, other.lo), d = product(hi, other.hi);
+        return of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)), undefined(other));
+    }
+    
+    public Interval divide(Interval other) {
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+        // dividing by anything close to 0 can give anything, and 0 / 0 is NaN
+        if (other.contains(0)) {
+            return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, undefined(other) || contains(0));
+        }
+        // otherwise division is monotonic in both arguments, so the extremes are at the corners
+        double a = lo / other.lo, b = lo / other.hi, c = hi / other.lo, d = hi / other.hi;
+        return of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)), undefined(other));
+    }
+    
+    public Interval pow(Interval exponent) {
+        // x^0 is 1 for every x, even NaN
+        if (exponent.lo == 0 && exponent.hi == 0) {
+            return new Interval(1);
+        }
+        if (isEmpty() || exponent.isEmpty()) {
+            return EMPTY;
+        }
+        boolean undefined = undefined(exponent);
+        // integer powers are defined for negative numbers too, so they need their own cases
+        if (exponent.isPoint() && exponent.lo == Math.rint(exponent.lo) && !Double.isInfinite(exponent.lo)) {
+            double n = exponent.lo;
+            if (n < 0) {
+                return new Interval(1).divide(pow(new Interval(-n)));
+            }
+            double a = Math.pow(lo, n), b = Math.pow(hi, n);
+            if (n % 2 == 1 || lo >= 0) {
+                // odd powers are increasing everywhere, and so is every power on positive numbers
+                return of(a, b, undefined);
+            } else if (hi <= 0) {
+                // even powers are decreasing on negative numbers
+                return of(b, a, undefined);
+            }
+            // even power of an interval around 0
+            return of(0, Math.max(a, b), undefined);
+        }
+        if (lo < 0) {
+            // negative numbers to the power of integers (or infinity) are numbers, anything else is NaN
+            if (exponent.isUnbounded() || Math.floor(exponent.hi) >= exponent.lo) {
+                return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+            }
+            if (hi < 0) {
+                return EMPTY;
+            }
+            return new Interval(0, hi, true).pow(exponent);
+        }
+        // on positive numbers, x^y is monotonic in both x and y, so the extremes are at the corners
+        double a = Math.pow(lo, exponent.lo), b = Math.pow(lo, exponent.hi), c = Math.pow(hi, exponent.lo), d = Math.pow(hi, exponent.hi);
+        return of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)), undefined);
+    }
+    
+    public Interval sin() {
+        return periodic(Math.sin(lo), Math.sin(hi), Math.PI / 2, -Math.PI / 2);
+    }
+    
+    public Interval cos() {
+        return periodic(Math.cos(lo), Math.cos(hi), 0, Math.PI);
+    }
+    
+    public Interval tan() {
+        if (isEmpty()) {
+            return EMPTY;
+        }
+        // tan goes off to infinity at pi/2 + k*pi, and is increasing in between. it's NaN at infinity
+        if (hi - lo >= Math.PI || containsPeriodic(Math.PI / 2, Math.PI)) {
+            return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, undefined || isUnbounded());
+        }
+        return of(Math.tan(lo), Math.tan(hi), undefined);
+    }
+    
+    public Interval asin() {
+        if (isEmpty() || lo > 1 || hi < -1) {
+            return EMPTY;
+        }
+        return of(Math.asin(Math.max(-1, lo)), Math.asin(Math.min(1, hi)), undefined || lo < -1 || hi > 1);
+    }
+    
+    public Interval acos() {
+        if (isEmpty() || lo > 1 || hi < -1) {
+            return EMPTY;
+        }
+        // acos is decreasing
+        return of(Math.acos(Math.min(1, hi)), Math.acos(Math.max(-1, lo)), undefined || lo < -1 || hi > 1);
+    }
+    
+    public Interval atan() {
+        if (isEmpty()) {
+            return EMPTY;
+        }
+        return of(Math.atan(lo), Math.atan(hi), undefined);
+    }
+    
+    public Interval log() {
+        if (isEmpty() || hi < 0) {
+            return EMPTY;
+        }
+        return of(Math.log10(Math.max(0, lo)), Math.log10(hi), undefined || lo < 0);
+    }
+    
+    public Interval ln() {
+        if (isEmpty() || hi < 0) {
+            return EMPTY;
+        }
+        return of(Math.log(Math.max(0, lo)), Math.log(hi), undefined || lo < 0);
+    }
+    
+    public Interval sqrt() {
+        if (isEmpty() || hi < 0) {
+            return EMPTY;
+        }
+        return of(Math.sqrt(Math.max(0, lo)), Math.sqrt(hi), undefined || lo < 0);
+    }
+    
+    public Interval abs() {
+        if (isEmpty() || lo >= 0) {
+            return this;
+        }
+        if (hi <= 0) {
+            return new Interval(-hi, -lo, undefined);
+        }
+        return new Interval(0, Math.max(-lo, hi), undefined);
+    }
+    
+    @Override
+    public String toString() {
+        return "[" + lo + ", " + hi + "]" + (undefined ? "?" : "");
+    }
+    
+    // bounds of sin or cos, given their values at the ends of the interval, and where their maximum and minimum are
+    private Interval periodic(double atLo, double atHi, double maxAt, double minAt) {
+        if (isEmpty()) {
+            return EMPTY;
+        }
+        // sin and cos of infinity are NaN
+        if (isUnbounded() || hi - lo >= TWO_PI) {
+            return new Interval(-1, 1, undefined || isUnbounded());
+        }
+        double max = containsPeriodic(maxAt, TWO_PI) ? 1 : Math.max(atLo, atHi);
+        double min = containsPeriodic(minAt, TWO_PI) ? -1 : Math.min(atLo, atHi);
+        return of(min, max, undefined);
+    }
+    
+    // whether the interval contains offset + k * period for some integer k
+    // errs on the side of saying yes, since that only makes the result wider
+    private boolean containsPeriodic(double offset, double period) {
+        double k = Math.floor((hi - offset) / period);
+        double point = offset + k * period;
+        double tolerance = 1e-9 * Math.max(1, Math.abs(hi));
+        return point >= lo - tolerance || point + period <= hi + tolerance;
+    }
+    
+    // multiplication for interval bounds, where 0 * infinity is 0 instead of NaN
+    private static double product(double a, double b) {
+        return a == 0 || b == 0 ? 0 : a * b;
+    }
+}
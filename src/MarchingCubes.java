@@ -1,9 +1,74 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+/*
+ * marching cubes, used to turn an implicit surface f(x, y, z) = 0 into triangles
+ *
+ * the expensive part, evaluating the function over the grid, is split into slabs along the x axis which are run
+ * on an executor (the common ForkJoinPool by default). every point is computed exactly the same way no matter
+ * which thread it lands on, so the parallel result is identical to the serial one
+ *
+ * extracting the mesh is split up the same way. each slab writes its triangles into its own FloatList without
+ * allocating any objects per cube, and the slabs are stitched together in order at the end, so the output doesn't
+ * depend on how the work was scheduled either
+ *
+ * the scalar field is stored in one flat float[], indexed by (x * (resY + 1) + y) * (resZ + 1) + z, and the
+ * coordinates of the grid points aren't stored at all. they are affine in the indices, so the position of a point
+ * is looked up from one small array of coordinates per axis when a vertex is interpolated
+ *
+ * there is also an indexed version (extractIndexedMesh), where every crossing of the surface with an edge of the grid
+ * becomes one vertex, shared by all of the triangles that use it. each slab keeps a table of the vertices on the
+ * edges of the x planes it's working on, and the vertices on the plane between two slabs belong to the first one.
+ * the vertices also get smooth normals, from the gradient of the scalar field by central differences, so nothing has
+ * to be evaluated again and the renderer can use them as they are
+ */
 public class MarchingCubes {
-    private final int RESOLUTION = 128;
-    private final float[][][] scalarField = new float[RESOLUTION + 1][RESOLUTION + 1][RESOLUTION + 1];
-    private final vec3[][][] gridPoints = new vec3[RESOLUTION + 1][RESOLUTION + 1][RESOLUTION + 1];
+    // the corners of a cube, as offsets from its lowest corner. the order matches the bits of the cube index
+    private static final int[][] CORNERS = new int[][]{
+        {0, 0, 0}, {1, 0, 0}, {1, 0, 1}, {0, 0, 1},
+        {0, 1, 0}, {1, 1, 0}, {1, 1, 1}, {0, 1, 1}
+    };
+    // the two corners at the ends of each of the 12 edges, in the order used by edgeTable and triTable
+    // the lower corner comes first, so that neighbouring cubes interpolate their shared edges the same way
+    private static final int[][] EDGES = new int[][]{
+        {0, 1}, {1, 2}, {3, 2}, {0, 3},
+        {4, 5}, {5, 6}, {7, 6}, {4, 7},
+        {0, 4}, {1, 5}, {2, 6}, {3, 7}
+    };
+    // the axis that each of the 12 edges runs along, 0 for x, 1 for y and 2 for z
+    private static final int[] EDGE_AXES = new int[]{0, 2, 0, 2, 0, 2, 0, 2, 1, 1, 1, 1};
+    // marks an edge in the tables of extractIndexedMesh that doesn't have a vertex yet
+    private static final int NO_VERTEX = Integer.MIN_VALUE;
+    public static final int DEFAULT_RESOLUTION = 128;
+    // goes up by one whenever a change here or in BrickGrid makes the meshes come out differently, so that meshes saved
+    // to disk by an older version (see Mesh.write) aren't used
+    public static final int VERSION = 1;
+    // rough sizes used for the memory estimate, assuming a 64 bit jvm with compressed references
+    private static final long ARRAY_HEADER_BYTES = 16;
+    // number of cubes along each axis. the grid has one more point than that along each axis
+    private final int resX;
+    private final int resY;
+    private final int resZ;
+    // number of grid points along each axis, and the distance between neighbouring x and y planes in scalarField
+    private final int nx, ny, nz;
+    private final int strideX, strideY;
+    // offset in scalarField from the lowest corner of a cube to each of its corners
+    private final int[] cornerOffsets = new int[8];
+    // the coordinate of every grid point along each axis
+    private final double[] xs, ys, zs;
+    // allocated by generateScalarField, after checking that it fits in the heap
+    private float[] scalarField;
+    // how many times the function has been evaluated
+    private final AtomicLong evaluations = new AtomicLong();
     private final Expression expr;
     private final double x1;
     private final double y1;
@@ -11,11 +76,13 @@ public class MarchingCubes {
     private final double x2;
     private final double y2;
     private final double z2;
-    
+    // runs the slabs in parallel. null means everything runs on the calling thread
+    private ExecutorService executor = ForkJoinPool.commonPool();
+
     // http://paulbourke.net/geometry/polygonise/
     // lookup table for all of the possible ways the faces in marching cubes can be arranged
     // edgetable is used to map the arrangement of the vertices to an index in triTable
-    private final int[] edgeTable = new int[]{
+    private static final int[] edgeTable = new int[]{
         0x0, 0x109, 0x203, 0x30a, 0x406, 0x50f, 0x605, 0x70c,
         0x80c, 0x905, 0xa0f, 0xb06, 0xc0a, 0xd03, 0xe09, 0xf00,
         0x190, 0x99, 0x393, 0x29a, 0x596, 0x49f, 0x795, 0x69c,
@@ -49,7 +116,7 @@ public class MarchingCubes {
         0xf00, 0xe09, 0xd03, 0xc0a, 0xb06, 0xa0f, 0x905, 0x80c,
         0x70c, 0x605, 0x50f, 0x406, 0x30a, 0x203, 0x109, 0x0};
     // triTable contains a list of the triangles and which edges the vertices are on, for each arrangement
-    private final int[][] triTable = new int[][]{
+    private static final int[][] triTable = new int[][]{
         {-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
         {0, 8, 3, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
         {0, 1, 9, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
@@ -307,132 +374,422 @@ public class MarchingCubes {
         {0, 3, 8, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
         {-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1}
     };
-    
+
     public MarchingCubes(Expression expr, double x1, double y1, double z1, double x2, double y2, double z2) {
+        this(expr, x1, y1, z1, x2, y2, z2, DEFAULT_RESOLUTION, DEFAULT_RESOLUTION, DEFAULT_RESOLUTION);
+    }
+
+    public MarchingCubes(Expression expr, double x1, double y1, double z1, double x2, double y2, double z2, int resX, int resY, int resZ) {
+        this(expr, coordinates(x1, x2, resX), coordinates(y1, y2, resY), coordinates(z1, z2, resZ));
+    }
+
+    // a grid with the coordinates of its points given directly, instead of spread evenly between two bounds
+    // used by BrickGrid, where neighbouring bricks have to agree exactly on the points they share
+    MarchingCubes(Expression expr, double[] xs, double[] ys, double[] zs) {
+        this.resX = xs.length - 1;
+        this.resY = ys.length - 1;
+        this.resZ = zs.length - 1;
         this.expr = expr;
-        this.x1 = x1;
-        this.y1 = y1;
-        this.z1 = z1;
-        this.x2 = x2;
-        this.y2 = y2;
-        this.z2 = z2;
+        this.x1 = xs[0];
+        this.y1 = ys[0];
+        this.z1 = zs[0];
+        this.x2 = xs[resX];
+        this.y2 = ys[resY];
+        this.z2 = zs[resZ];
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+
+        nx = resX + 1;
+        ny = resY + 1;
+        nz = resZ + 1;
+        strideY = nz;
+        strideX = ny * nz;
+        for (int i = 0; i < 8; i++) {
+            cornerOffsets[i] = CORNERS[i][0] * strideX + CORNERS[i][1] * strideY + CORNERS[i][2];
+        }
+    }
+
+    // the coordinates of res + 1 grid points spread evenly from a to b
+    private static double[] coordinates(double a, double b, int res) {
+        if (res < 1) {
+            throw new IllegalArgumentException("Invalid resolution: " + res);
+        }
+        double[] ret = new double[res + 1];
+        for (int i = 0; i <= res; i++) {
+            ret[i] = a + (b - a) * (i / (double) res);
+        }
+        return ret;
+    }
+
+    // picks a resolution for each axis so that the cubes are roughly cubes, with the longest axis getting
+    // the given resolution. the other axes never go below 1/8th of it, so that flat domains still look smooth
+    public static int[] adaptiveResolution(double x1, double y1, double z1, double x2, double y2, double z2, int resolution) {
+        double[] extents = new double[]{Math.abs(x2 - x1), Math.abs(y2 - y1), Math.abs(z2 - z1)};
+        double longest = Math.max(extents[0], Math.max(extents[1], extents[2]));
+        int[] res = new int[3];
+        for (int i = 0; i < 3; i++) {
+            int r = longest > 0 ? (int) Math.ceil(resolution * extents[i] / longest) : resolution;
+            res[i] = Math.max(r, Math.max(1, resolution / 8));
+        }
+        return res;
     }
-    
+
+    // estimate of the heap used by the grid of a render at the given resolution, in bytes
+    // the mesh isn't included, since its size depends on the surface
+    public static long estimateMemory(int resX, int resY, int resZ) {
+        long points = (long) (resX + 1) * (resY + 1) * (resZ + 1);
+        // the scalar field, plus the coordinates along each axis
+        return ARRAY_HEADER_BYTES + points * Float.BYTES + 3 * ARRAY_HEADER_BYTES + (resX + resY + resZ + 3) * (long) Double.BYTES;
+    }
+
+    // whether the grid at this resolution fits in the heap that's left
+    public static boolean fitsInMemory(int resX, int resY, int resZ) {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return estimateMemory(resX, resY, resZ) <= available;
+    }
+
+    // the number of times the function has been evaluated by this object so far
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    // sets the executor used to evaluate the grid, or null to do it serially on the calling thread
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    // the scalar field made by generateScalarField (or given to setScalarField), or null if there isn't one yet
+    public float[] getScalarField() {
+        return scalarField;
+    }
+
+    // uses a scalar field that was already computed for the same function, bounds and resolution, instead of
+    // generating it again
+    public void setScalarField(float[] scalarField) {
+        if (scalarField.length != (long) nx * ny * nz) {
+            throw new IllegalArgumentException("Scalar field has " + scalarField.length + " points, expected " + (long) nx * ny * nz);
+        }
+        this.scalarField = scalarField;
+    }
+
     // evaluate the function at each point in the grid to obtain the scalar field
     public void generateScalarField() {
-        for (int x = 0; x <= RESOLUTION; x++) {
-            for (int y = 0; y <= RESOLUTION; y++) {
-                for (int z = 0; z <= RESOLUTION; z++) {
-                    // compute the coordinate of the current point, based off of x1, y1, z1, x2, y2, z2 and resolution
-                    double xCoord = x1 + (x2 - x1) * (x / (double) RESOLUTION);
-                    double yCoord = y1 + (y2 - y1) * (y / (double) RESOLUTION);
-                    double zCoord = z1 + (z2 - z1) * (z / (double) RESOLUTION);
-                    
-                    gridPoints[x][y][z] = new vec3(xCoord, yCoord, zCoord);
-                    
-                    // set the scalar field value at the current point
-                    scalarField[x][y][z] = (float) expr.evaluate(xCoord, yCoord, zCoord);
-                    //System.out.println(scalarField[x][y][z]);
+        // the field is a single array, so it can't have more points than an array can hold
+        if ((long) nx * ny * nz > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Resolution too high: " + resX + "x" + resY + "x" + resZ);
+        }
+        // refuse to start instead of running out of memory halfway through
+        if (!fitsInMemory(resX, resY, resZ)) {
+            throw new IllegalArgumentException("Resolution " + resX + "x" + resY + "x" + resZ + " needs about "
+                + estimateMemory(resX, resY, resZ) / (1024 * 1024) + " MB, which is more than the memory available");
+        }
+        scalarField = new float[nx * ny * nz];
+        forEachSlab(nx, (start, end) -> {
+            // each slab gets its own evaluator, since an Expression can only be evaluated by one thread at a time
+            ExpressionFunction f = expr.newEvaluator();
+            // the field is evaluated one row along z at a time, where x and y stay the same
+            double[] rowX = new double[nz];
+            double[] rowY = new double[nz];
+            for (int x = start; x < end; x++) {
+                Arrays.fill(rowX, xs[x]);
+                for (int y = 0; y < ny; y++) {
+                    Arrays.fill(rowY, ys[y]);
+                    f.eval(rowX, rowY, zs, scalarField, x * strideX + y * strideY, nz);
                 }
             }
+        });
+        evaluations.addAndGet((long) nx * ny * nz);
+    }
+
+    // splits the x indices [0, n) into slabs, and runs them on the executor, waiting until they are all done
+    private void forEachSlab(int n, SlabTask task) {
+        if (executor == null) {
+            task.run(0, n);
+            return;
+        }
+        int threads = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+        // a few slabs per thread, so that threads that finish early can pick up more work
+        int slabs = Math.min(n, Math.max(1, threads * 4));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < slabs; i++) {
+            int start = (int) ((long) n * i / slabs);
+            int end = (int) ((long) n * (i + 1) / slabs);
+            tasks.add(() -> {
+                task.run(start, end);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating the mesh", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
         }
     }
-    
+
     // extract the mesh from the scalar field
-    public ArrayList<Float> extractMesh() {
-        ArrayList<Float> vertices = new ArrayList<Float>();
-        for (int x = 0; x < RESOLUTION; x++) {
-            for (int y = 0; y < RESOLUTION; y++) {
-                for (int z = 0; z < RESOLUTION; z++) {
-                    vec3[] vertList = new vec3[12];
-                    
-                    // compute the index of the current cube
-                    int cubeIndex = 0;
-                    if (scalarField[x][y][z] <= 0) cubeIndex |= 1;
-                    if (scalarField[x + 1][y][z] <= 0) cubeIndex |= 2;
-                    if (scalarField[x + 1][y][z + 1] <= 0) cubeIndex |= 4;
-                    if (scalarField[x][y][z + 1] <= 0) cubeIndex |= 8;
-                    if (scalarField[x][y + 1][z] <= 0) cubeIndex |= 16;
-                    if (scalarField[x + 1][y + 1][z] <= 0) cubeIndex |= 32;
-                    if (scalarField[x + 1][y + 1][z + 1] <= 0) cubeIndex |= 64;
-                    if (scalarField[x][y + 1][z + 1] <= 0) cubeIndex |= 128;
-                    
-                    //System.out.println(cubeIndex);
-                    
-                    // find vertices on the edges of the cube, i hope i did this right
-                    if ((edgeTable[cubeIndex] & 1) > 0) {
-                        vertList[0] = interpolate(gridPoints[x][y][z], gridPoints[x + 1][y][z], scalarField[x][y][z], scalarField[x + 1][y][z]);
-                    }
-                    if ((edgeTable[cubeIndex] & 2) > 0) {
-                        vertList[1] = interpolate(gridPoints[x + 1][y][z], gridPoints[x + 1][y][z + 1], scalarField[x + 1][y][z], scalarField[x + 1][y][z + 1]);
-                    }
-                    if ((edgeTable[cubeIndex] & 4) > 0) {
-                        vertList[2] = interpolate(gridPoints[x + 1][y][z + 1], gridPoints[x][y][z + 1], scalarField[x + 1][y][z + 1], scalarField[x][y][z + 1]);
-                    }
-                    if ((edgeTable[cubeIndex] & 8) > 0) {
-                        vertList[3] = interpolate(gridPoints[x][y][z + 1], gridPoints[x][y][z], scalarField[x][y][z + 1], scalarField[x][y][z]);
+    // returns the triangles as a flat array, 3 floats (x, y, z) per vertex and 3 vertices per triangle
+    public float[] extractMesh() {
+        // one list per slab, stored at the index of the slab's first x
+        FloatList[] slabs = new FloatList[resX];
+        forEachSlab(resX, (start, end) -> {
+            FloatList vertices = new FloatList();
+            // the interpolated vertex on each of the 12 edges, reused for every cube
+            float[] vertList = new float[12 * 3];
+            for (int x = start; x < end; x++) {
+                for (int y = 0; y < resY; y++) {
+                    for (int z = 0; z < resZ; z++) {
+                        polygonise(scalarField, x * strideX + y * strideY + z, cornerOffsets, x, y, z, vertList, vertices);
                     }
-                    if ((edgeTable[cubeIndex] & 16) > 0) {
-                        vertList[4] = interpolate(gridPoints[x][y + 1][z], gridPoints[x + 1][y + 1][z], scalarField[x][y + 1][z], scalarField[x + 1][y + 1][z]);
-                    }
-                    if ((edgeTable[cubeIndex] & 32) > 0) {
-                        vertList[5] = interpolate(gridPoints[x + 1][y + 1][z], gridPoints[x + 1][y + 1][z + 1], scalarField[x + 1][y + 1][z], scalarField[x + 1][y + 1][z + 1]);
-                    }
-                    if ((edgeTable[cubeIndex] & 64) > 0) {
-                        vertList[6] = interpolate(gridPoints[x + 1][y + 1][z + 1], gridPoints[x][y + 1][z + 1], scalarField[x + 1][y + 1][z + 1], scalarField[x][y + 1][z + 1]);
-                    }
-                    if ((edgeTable[cubeIndex] & 128) > 0) {
-                        vertList[7] = interpolate(gridPoints[x][y + 1][z + 1], gridPoints[x][y + 1][z], scalarField[x][y + 1][z + 1], scalarField[x][y + 1][z]);
-                    }
-                    if ((edgeTable[cubeIndex] & 256) > 0) {
-                        vertList[8] = interpolate(gridPoints[x][y][z], gridPoints[x][y + 1][z], scalarField[x][y][z], scalarField[x][y + 1][z]);
-                    }
-                    if ((edgeTable[cubeIndex] & 512) > 0) {
-                        vertList[9] = interpolate(gridPoints[x + 1][y][z], gridPoints[x + 1][y + 1][z], scalarField[x + 1][y][z], scalarField[x + 1][y + 1][z]);
-                    }
-                    if ((edgeTable[cubeIndex] & 1024) > 0) {
-                        vertList[10] = interpolate(gridPoints[x + 1][y][z + 1], gridPoints[x + 1][y + 1][z + 1], scalarField[x + 1][y][z + 1], scalarField[x + 1][y + 1][z + 1]);
-                    }
-                    if ((edgeTable[cubeIndex] & 2048) > 0) {
-                        vertList[11] = interpolate(gridPoints[x][y][z + 1], gridPoints[x][y + 1][z + 1], scalarField[x][y][z + 1], scalarField[x][y + 1][z + 1]);
+                }
+            }
+            slabs[start] = vertices;
+        });
+
+        return stitch(slabs);
+    }
+
+    // extract the mesh from the scalar field, sharing the vertices between triangles. the mesh is in direct buffers
+    // (see Mesh.allocate), so it can be sent to opengl as it is
+    public Mesh extractIndexedMesh() {
+        return extractIndexedMesh(0, 0, 0, resX, resY, resZ, true);
+    }
+
+    // the same, but only for the cubes with their lowest corner in [cx0, cx1) x [cy0, cy1) x [cz0, cz1)
+    // the grid points around those cubes are still used for the normals, so a grid with a margin of one point around
+    // the cubes gets central differences all the way to the edges. used by BrickGrid for that, with the small meshes
+    // of the bricks in arrays (direct is false), since they're only copied into the whole mesh afterwards
+    Mesh extractIndexedMesh(int cx0, int cy0, int cz0, int cx1, int cy1, int cz1, boolean direct) {
+        int slabCount = cx1 - cx0;
+        FloatList[] slabVertices = new FloatList[slabCount];
+        IntList[] slabIndices = new IntList[slabCount];
+        // the vertices on the last plane of each slab, which the next slab refers to
+        int[][] lastPlanes = new int[slabCount][];
+        forEachSlab(slabCount, (slabStart, slabEnd) -> {
+            int start = cx0 + slabStart;
+            int end = cx0 + slabEnd;
+            FloatList vertices = new FloatList();
+            IntList indices = new IntList();
+            // the index of the vertex on each edge of the current cube
+            int[] edgeVertices = new int[12];
+            float[] vertex = new float[3];
+            // the gradient at both ends of an edge
+            float[] gradient = new float[6];
+            // the vertices on the x edges starting at the current x plane, and the vertices on the y and z edges
+            // (interleaved) of the current plane and the next one
+            int[] xEdges = new int[ny * nz];
+            int[] plane = new int[ny * nz * 2];
+            int[] nextPlane = new int[ny * nz * 2];
+            // the first plane belongs to the previous slab. its edges are marked with -1 - their position in the
+            // table, and are swapped for the previous slab's vertices once every slab is done
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = slabStart == 0 ? NO_VERTEX : -1 - i;
+            }
+            Arrays.fill(nextPlane, NO_VERTEX);
+            for (int x = start; x < end; x++) {
+                Arrays.fill(xEdges, NO_VERTEX);
+                for (int y = cy0; y < cy1; y++) {
+                    for (int z = cz0; z < cz1; z++) {
+                        int cubeIndex = cubeIndex(scalarField, x * strideX + y * strideY + z, cornerOffsets);
+                        int edges = edgeTable[cubeIndex];
+                        if (edges == 0) {
+                            continue;
+                        }
+
+                        // look up the vertices on the edges of the cube, adding the ones that haven't been made yet
+                        for (int i = 0; i < 12; i++) {
+                            if ((edges & (1 << i)) == 0) continue;
+                            int[] c1 = CORNERS[EDGES[i][0]];
+                            int point = (y + c1[1]) * nz + z + c1[2];
+                            int[] table;
+                            int slot;
+                            if (EDGE_AXES[i] == 0) {
+                                table = xEdges;
+                                slot = point;
+                            } else {
+                                table = c1[0] == 0 ? plane : nextPlane;
+                                slot = point * 2 + EDGE_AXES[i] - 1;
+                            }
+                            if (table[slot] == NO_VERTEX) {
+                                int[] c2 = CORNERS[EDGES[i][1]];
+                                double val1 = scalarField[x * strideX + y * strideY + z + cornerOffsets[EDGES[i][0]]];
+                                double val2 = scalarField[x * strideX + y * strideY + z + cornerOffsets[EDGES[i][1]]];
+                                interpolate(x + c1[0], y + c1[1], z + c1[2], x + c2[0], y + c2[1], z + c2[2], val1, val2, vertex, 0);
+                                // the normal is the gradient interpolated the same way, which points out of the surface
+                                gradient(x + c1[0], y + c1[1], z + c1[2], gradient, 0);
+                                gradient(x + c2[0], y + c2[1], z + c2[2], gradient, 3);
+                                float t = (float) interpolationFactor(val1, val2);
+                                float nx = gradient[0] + (gradient[3] - gradient[0]) * t;
+                                float ny = gradient[1] + (gradient[4] - gradient[1]) * t;
+                                float nz = gradient[2] + (gradient[5] - gradient[2]) * t;
+                                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                                // the gradient can be 0 or NaN at singular points, and then there isn't a normal
+                                if (!(length > 0) || Float.isInfinite(length)) {
+                                    nx = ny = nz = length = 0;
+                                } else {
+                                    nx /= length;
+                                    ny /= length;
+                                    nz /= length;
+                                }
+                                table[slot] = vertices.size() / 6;
+                                vertices.add(vertex[0], vertex[1], vertex[2]);
+                                vertices.add(nx, ny, nz);
+                            }
+                            edgeVertices[i] = table[slot];
+                        }
+
+                        int[] triangles = triTable[cubeIndex];
+                        for (int i = 0; triangles[i] != -1; i++) {
+                            indices.add(edgeVertices[triangles[i]]);
+                        }
                     }
-                    
-                    // add the triangles to the mesh
-                    for (int i = 0; triTable[cubeIndex][i] != -1; i += 3) {
-                        vertices.add((float) vertList[triTable[cubeIndex][i]].x);
-                        vertices.add((float) vertList[triTable[cubeIndex][i]].y);
-                        vertices.add((float) vertList[triTable[cubeIndex][i]].z);
-                        vertices.add((float) vertList[triTable[cubeIndex][i + 1]].x);
-                        vertices.add((float) vertList[triTable[cubeIndex][i + 1]].y);
-                        vertices.add((float) vertList[triTable[cubeIndex][i + 1]].z);
-                        vertices.add((float) vertList[triTable[cubeIndex][i + 2]].x);
-                        vertices.add((float) vertList[triTable[cubeIndex][i + 2]].y);
-                        vertices.add((float) vertList[triTable[cubeIndex][i + 2]].z);
+                }
+                // move on to the next plane
+                int[] swap = plane;
+                plane = nextPlane;
+                nextPlane = swap;
+                Arrays.fill(nextPlane, NO_VERTEX);
+            }
+            slabVertices[slabStart] = vertices;
+            slabIndices[slabStart] = indices;
+            lastPlanes[slabStart] = plane;
+        });
+
+        // join the slabs, offsetting their indices by the number of vertices before them
+        int vertexCount = 0;
+        int indexCount = 0;
+        for (int x = 0; x < slabCount; x++) {
+            if (slabVertices[x] == null) continue;
+            vertexCount += slabVertices[x].size();
+            indexCount += slabIndices[x].size();
+        }
+        Mesh mesh = direct ? Mesh.allocate(vertexCount / 6, indexCount) : new Mesh(new float[vertexCount], new int[indexCount]);
+        FloatBuffer vertices = mesh.getVertexBuffer();
+        IntBuffer indices = mesh.getIndexBuffer();
+        int vertexOffset = 0;
+        int previous = -1;
+        int previousOffset = 0;
+        for (int x = 0; x < slabCount; x++) {
+            if (slabVertices[x] == null) continue;
+            int offset = vertexOffset / 6;
+            IntList slab = slabIndices[x];
+            for (int i = 0; i < slab.size(); i++) {
+                int index = slab.get(i);
+                if (index < 0) {
+                    // a vertex on the plane shared with the previous slab
+                    int shared = lastPlanes[previous][-1 - index];
+                    if (shared < 0) {
+                        throw new IllegalStateException("Missing vertex between slabs at x = " + (cx0 + x));
                     }
+                    index = shared + previousOffset;
+                } else {
+                    index += offset;
                 }
+                indices.put(index);
             }
+            slabVertices[x].copyTo(vertices);
+            vertexOffset += slabVertices[x].size();
+            previous = x;
+            previousOffset = offset;
+        }
+        return mesh;
+    }
+
+    // joins the lists of vertices into one array, in order, skipping the nulls
+    private static float[] stitch(FloatList[] parts) {
+        int size = 0;
+        for (FloatList part : parts) {
+            if (part != null) size += part.size();
+        }
+        float[] vertices = new float[size];
+        int offset = 0;
+        for (FloatList part : parts) {
+            if (part != null) offset = part.copyTo(vertices, offset);
         }
         return vertices;
     }
-    
-    // utility function to interpolate between two points in vector form
-    private vec3 interpolate(vec3 p1, vec3 p2, double val1, double val2) {
-        if (p2.compareTo(p1) < 0) {
-            vec3 temp = p1;
-            p1 = p2;
-            p2 = temp;
-            double temp2 = val1;
-            val1 = val2;
-            val2 = temp2;
+
+    // adds the triangles of a cube to vertices. the cube's lowest corner is at base in field, and offsets are the
+    // offsets from there to each of its corners. (x, y, z) are the indices of that corner in the whole grid
+    private void polygonise(float[] field, int base, int[] offsets, int x, int y, int z, float[] vertList, FloatList vertices) {
+        int cubeIndex = cubeIndex(field, base, offsets);
+        int edges = edgeTable[cubeIndex];
+        if (edges == 0) {
+            return;
         }
-        
-        vec3 p;
+
+        // find vertices on the edges of the cube
+        for (int i = 0; i < 12; i++) {
+            if ((edges & (1 << i)) != 0) {
+                int a = EDGES[i][0];
+                int b = EDGES[i][1];
+                double val1 = field[base + offsets[a]];
+                double val2 = field[base + offsets[b]];
+                int[] c1 = CORNERS[a];
+                int[] c2 = CORNERS[b];
+                interpolate(x + c1[0], y + c1[1], z + c1[2], x + c2[0], y + c2[1], z + c2[2], val1, val2, vertList, i * 3);
+            }
+        }
+
+        // add the triangles to the mesh
+        int[] triangles = triTable[cubeIndex];
+        for (int i = 0; triangles[i] != -1; i++) {
+            int v = triangles[i] * 3;
+            vertices.add(vertList[v], vertList[v + 1], vertList[v + 2]);
+        }
+    }
+
+    // the index of a cube, with a bit set for each corner that is inside the surface (<= 0)
+    private static int cubeIndex(float[] field, int base, int[] offsets) {
+        int cubeIndex = 0;
+        for (int i = 0; i < 8; i++) {
+            if (field[base + offsets[i]] <= 0) cubeIndex |= 1 << i;
+        }
+        return cubeIndex;
+    }
+
+    // utility function to find where the surface crosses the edge between two grid points, by linear interpolation
+    // writes the point into out at offset
+    // the positions of the two grid points are computed from their indices
+    private void interpolate(int xa, int ya, int za, int xb, int yb, int zb, double val1, double val2, float[] out, int offset) {
+        double t = interpolationFactor(val1, val2);
+        out[offset] = (float) (xs[xa] + (xs[xb] - xs[xa]) * t);
+        out[offset + 1] = (float) (ys[ya] + (ys[yb] - ys[ya]) * t);
+        out[offset + 2] = (float) (zs[za] + (zs[zb] - zs[za]) * t);
+    }
+
+    // how far along the edge from the first grid point to the second the surface crosses it
+    private static double interpolationFactor(double val1, double val2) {
+        double t = 0;
         if (Math.abs(val1 - val2) > 0.00001) {
-            p = p1.add(p2.subtract(p1).multiply(-val1 / (val2 - val1)));
-        } else {
-            p = p1;
+            t = -val1 / (val2 - val1);
         }
-        return p;
+        return t;
+    }
+
+    // the gradient of the scalar field at a grid point, written into out at offset
+    // uses central differences, or one sided differences on the sides of the grid
+    private void gradient(int x, int y, int z, float[] out, int offset) {
+        int i = x * strideX + y * strideY + z;
+        int x0 = Math.max(x - 1, 0), x1 = Math.min(x + 1, resX);
+        int y0 = Math.max(y - 1, 0), y1 = Math.min(y + 1, resY);
+        int z0 = Math.max(z - 1, 0), z1 = Math.min(z + 1, resZ);
+        out[offset] = (float) ((scalarField[i + (x1 - x) * strideX] - scalarField[i + (x0 - x) * strideX]) / (xs[x1] - xs[x0]));
+        out[offset + 1] = (float) ((scalarField[i + (y1 - y) * strideY] - scalarField[i + (y0 - y) * strideY]) / (ys[y1] - ys[y0]));
+        out[offset + 2] = (float) ((scalarField[i + z1 - z] - scalarField[i + z0 - z]) / (zs[z1] - zs[z0]));
+    }
+
+    // a piece of work over the x indices [start, end)
+    private interface SlabTask {
+        void run(int start, int end);
     }
-    
-}
\ No newline at end of file
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+ * an indexed triangle mesh, as made by MarchingCubes.extractIndexedMesh
+ * every vertex is stored once, and the triangles refer to them by index, 3 indices per triangle. neighbouring
+ * triangles share their vertices, so this is a lot smaller than the flat list of triangles from extractMesh
+ *
+ * the normals are stored next to the positions, in the same layout that the renderer sends to opengl
+ *
+ * meshes made for rendering are in direct buffers in the native byte order (see allocate), which jogl hands straight
+ * to opengl. a mesh in arrays on the heap would be copied into native memory by jogl first, on top of the copy that is
+ * made by opengl, so a big mesh would be in memory three times while it's uploaded
+ *
+ * a mesh can be saved to a file with write, and loaded again with map. the file is a small header followed by the
+ * raw little endian vertices and indices, so loading it just maps the file into memory, and the renderer sends the
+ * mapped buffers straight to opengl without copying or parsing anything. the header has the version of MarchingCubes
+ * that made the mesh, and map doesn't load meshes from any other version
+ *
+ * a mapped file can't be renamed or deleted on some systems (windows) until the mapping is gone, which is only when the
+ * buffers are garbage collected, so isFileMapped tells whether that might still be the case. write doesn't map
+ * anything, it writes the file through a channel
+ *
+ * file format, all little endian:
+ * - MAGIC (4 bytes), VERSION (int), MarchingCubes.VERSION (int)
+ * - number of vertices (int), number of indices (int)
+ * - 6 floats per vertex
+ * - the indices, as ints
+ */
+public class Mesh {
+    private static final int MAGIC = 0x4853454d; // "MESH"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 20;
+    // how much of the file write puts together at a time
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    // the files that map has mapped, each with the buffer of the whole file. every buffer of a mapped mesh keeps that
+    // one from being collected, so the file is mapped for as long as it's there
+    private static final Map<Path, WeakReference<ByteBuffer>> MAPPINGS = new HashMap<>();
+    // 6 floats (x, y, z, nx, ny, nz) per vertex
+    private final FloatBuffer vertices;
+    // 3 indices into the vertices per triangle
+    private final IntBuffer indices;
+    // whether the buffers are a file mapped into memory, see map
+    private final boolean mapped;
+    
+    public Mesh(float[] vertices, int[] indices) {
+        this(FloatBuffer.wrap(vertices), IntBuffer.wrap(indices));
+    }
+    
+    public Mesh(FloatBuffer vertices, IntBuffer indices) {
+        this(vertices, indices, false);
+    }
+    
+    private Mesh(FloatBuffer vertices, IntBuffer indices, boolean mapped) {
+        this.vertices = vertices;
+        this.indices = indices;
+        this.mapped = mapped;
+    }
+    
+    // an empty mesh with room for the given number of vertices and indices, in direct buffers in the native byte
+    // order. it's filled in through getVertexBuffer and getIndexBuffer
+    public static Mesh allocate(int vertexCount, int indexCount) {
+        long vertexBytes = (long) vertexCount * 6 * Float.BYTES;
+        long indexBytes = (long) indexCount * Integer.BYTES;
+        if (vertexBytes > Integer.MAX_VALUE || indexBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mesh too large");
+        }
+        return new Mesh(ByteBuffer.allocateDirect((int) vertexBytes).order(ByteOrder.nativeOrder()).asFloatBuffer(),
+            ByteBuffer.allocateDirect((int) indexBytes).order(ByteOrder.nativeOrder()).asIntBuffer());
+    }
+    
+    // the vertices, as a buffer from position 0 to the end. for a mapped mesh this is the file itself
+    public FloatBuffer getVertexBuffer() {
+        return vertices.duplicate();
+    }
+    
+    public IntBuffer getIndexBuffer() {
+        return indices.duplicate();
+    }
+    
+    // the vertices as an array. a direct or mapped mesh doesn't have one, so it's copied out every time
+    public float[] getVertices() {
+        if (vertices.hasArray()) {
+            return vertices.array();
+        }
+        float[] ret = new float[vertices.capacity()];
+        vertices.duplicate().get(ret);
+        return ret;
+    }
+    
+    public int[] getIndices() {
+        if (indices.hasArray()) {
+            return indices.array();
+        }
+        int[] ret = new int[indices.capacity()];
+        indices.duplicate().get(ret);
+        return ret;
+    }
+    
+    public int getVertexCount() {
+        return vertices.capacity() / 6;
+    }
+    
+    public int getTriangleCount() {
+        return indices.capacity() / 3;
+    }
+    
+    // whether the mesh is in memory mapped from a file, instead of in the heap
+    public boolean isMapped() {
+        return mapped;
+    }
+    
+    // the size of the file that write makes for the mesh
+    public long getFileSize() {
+        return HEADER_BYTES + (long) vertices.capacity() * Float.BYTES + (long) indices.capacity() * Integer.BYTES;
+    }
+    
+    // saves the mesh to a file, in the format described above. it's written to a temporary file next to it first, so
+    // a file with the name is always complete, even if this is interrupted
+    public void write(Path file) throws IOException {
+        long size = getFileSize();
+        // map can't load anything bigger than that in one mapping
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Mesh too large to save: " + size + " bytes");
+        }
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                // the header, then the vertices and the indices, converted to little endian a buffer at a time
+                ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(MarchingCubes.VERSION).putInt(getVertexCount()).putInt(indices.capacity());
+                FloatBuffer v = getVertexBuffer();
+                IntBuffer i = getIndexBuffer();
+                do {
+                    if (v.hasRemaining()) {
+                        int n = Math.min(v.remaining(), buffer.remaining() / Float.BYTES);
+                        buffer.asFloatBuffer().put(v.slice().limit(n));
+                        v.position(v.position() + n);
+                        buffer.position(buffer.position() + n * Float.BYTES);
+                    } else if (i.hasRemaining()) {
+                        int n = Math.min(i.remaining(), buffer.remaining() / Integer.BYTES);
+                        buffer.asIntBuffer().put(i.slice().limit(n));
+                        i.position(i.position() + n);
+                        buffer.position(buffer.position() + n * Integer.BYTES);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                } while (v.hasRemaining() || i.hasRemaining());
+                channel.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+    
+    // loads a mesh saved by write, by mapping the file into memory. the mapping stays valid after this returns, for as
+    // long as the mesh is in use
+    public static Mesh map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a mesh file: " + file);
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            int magic = map.getInt();
+            int version = map.getInt();
+            int mesher = map.getInt();
+            int vertexCount = map.getInt();
+            int indexCount = map.getInt();
+            if (magic != MAGIC || version != VERSION || vertexCount < 0 || indexCount < 0
+                || size != HEADER_BYTES + (long) vertexCount * 6 * Float.BYTES + (long) indexCount * Integer.BYTES) {
+                throw new IOException("Not a mesh file: " + file);
+            }
+            if (mesher != MarchingCubes.VERSION) {
+                throw new IOException("Mesh made by another version: " + file);
+            }
+            int vertexBytes = vertexCount * 6 * Float.BYTES;
+            ByteBuffer vertexBytesBuffer = slice(map, HEADER_BYTES, vertexBytes);
+            ByteBuffer indexBytesBuffer = slice(map, HEADER_BYTES + vertexBytes, indexCount * Integer.BYTES);
+            // opengl reads the buffers in the native byte order, which is little endian nearly everywhere. otherwise
+            // the data has to be copied over into the native order
+            if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+                vertexBytesBuffer = ByteBuffer.allocateDirect(vertexBytes).order(ByteOrder.nativeOrder());
+                vertexBytesBuffer.asFloatBuffer().put(slice(map, HEADER_BYTES, vertexBytes).asFloatBuffer());
+                indexBytesBuffer = ByteBuffer.allocateDirect(indexCount * Integer.BYTES).order(ByteOrder.nativeOrder());
+                indexBytesBuffer.asIntBuffer().put(slice(map, HEADER_BYTES + vertexBytes, indexCount * Integer.BYTES).asIntBuffer());
+            } else {
+                synchronized (MAPPINGS) {
+                    MAPPINGS.put(file.toAbsolutePath(), new WeakReference<>(map));
+                }
+            }
+            return new Mesh(vertexBytesBuffer.asFloatBuffer(), indexBytesBuffer.asIntBuffer(), true);
+        }
+    }
+    
+    // whether the file might still be mapped by a mesh loaded with map. it stays mapped until the mesh and all of its
+    // buffers are garbage collected, even after the mesh has been thrown out of the cache, since the renderer can
+    // still be drawing it
+    public static boolean isFileMapped(Path file) {
+        synchronized (MAPPINGS) {
+            Iterator<WeakReference<ByteBuffer>> it = MAPPINGS.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            return MAPPINGS.containsKey(file.toAbsolutePath());
+        }
+    }
+    
+    // the bytes from offset to offset + length, keeping the byte order
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset).limit(offset + length);
+        return dup.slice().order(buffer.order());
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * cache of the meshes that have been rendered, so that rendering the same thing again is instant
+ *
+ * entries are keyed by the compiled program of the expression (so "2x" and "2 * x" are the same), the bounds and the
+ * resolution. the cache has a budget in bytes, and when it goes over, the least recently used entries are thrown out
+ * first. it is safe to use from several threads, but two threads asking for the same missing mesh will both make it.
+ * the scalar fields aren't kept here, BrickGrid keeps the ones of the last render itself
+ *
+ * it can also have a directory on disk, where every mesh that is made gets saved (see Mesh.write), named after a hash
+ * of its key. meshes that aren't in memory are looked for there before running marching cubes, and are loaded by
+ * mapping the file, so a mesh from an earlier run of the program is back instantly, however big it is. the files are
+ * only a cache, so any problem reading or writing them just means the mesh is made again
+ *
+ * the directory has its own budget in bytes (DEFAULT_DISK_BUDGET unless it's given). after a mesh is saved, the files
+ * that were used least recently are deleted until the directory fits again. a file counts as used when it's written or
+ * loaded, which sets its modification time. meshes bigger than the whole disk budget aren't saved at all. files that are
+ * still mapped by a mesh from the cache (see Mesh.isFileMapped) aren't deleted or replaced, since some systems don't
+ * allow that, they wait for a later save when they might not be
+ *
+ * the files have the version of MarchingCubes that made them in their header, and the ones from other versions aren't
+ * loaded, so they're made again and replace the old ones
+ */
+public class MeshCache {
+    // rough size of an entry apart from its arrays, for the budget
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+    private static final String EXTENSION = ".mesh";
+    public static final long DEFAULT_DISK_BUDGET = 1L << 30;
+    
+    private final long budget;
+    // where meshes are saved, or null to only keep them in memory
+    private final Path directory;
+    private final long diskBudget;
+    // in order of use, least recent first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits, misses, diskHits;
+    // held while the directory is trimmed, so two saves don't delete files for each other
+    private final Object diskLock = new Object();
+    
+    public MeshCache(long budget) {
+        this(budget, null);
+    }
+    
+    public MeshCache(long budget, Path directory) {
+        this(budget, directory, DEFAULT_DISK_BUDGET);
+    }
+    
+    public MeshCache(long budget, Path directory, long diskBudget) {
+        this.budget = budget;
+        this.directory = directory;
+        this.diskBudget = diskBudget;
+    }
+    
+    // the mesh for the expression over the bounds at the given resolution, from memory or from disk, or null if it
+    // isn't cached
+    public Mesh get(Expression expr, double x1, double y1, double z1, double x2, double y2, double z2, int resX, int resY, int resZ) {
+        Key key = new Key(expr.programKey(), new double[]{x1, y1, z1, x2, y2, z2}, new int[]{resX, resY, resZ});
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.mesh;
+            }
+            misses++;
+        }
+        
+        Path file = file(key);
+        if (file != null && Files.isRegularFile(file)) {
+            try {
+                Mesh mesh = Mesh.map(file);
+                synchronized (this) {
+                    diskHits++;
+                }
+                // mark it as used, so it's the last to be deleted when the directory is over its budget
+                touch(file);
+                put(key, new Entry(mesh));
+                return mesh;
+            } catch (IOException e) {
+                // broken file, it gets replaced by the next put
+            }
+        }
+        return null;
+    }
+    
+    // adds a mesh to the cache, and saves it to disk
+    public void put(Expression expr, double x1, double y1, double z1, double x2, double y2, double z2, int resX, int resY, int resZ, Mesh mesh) {
+        Key key = new Key(expr.programKey(), new double[]{x1, y1, z1, x2, y2, z2}, new int[]{resX, resY, resZ});
+        put(key, new Entry(mesh));
+        Path file = file(key);
+        if (file != null && mesh.getFileSize() <= diskBudget && !Mesh.isFileMapped(file)) {
+            try {
+                Files.createDirectories(directory);
+                mesh.write(file);
+                trimDirectory(file);
+            } catch (IOException e) {
+                // not being able to save it only costs time the next time it's needed
+            }
+        }
+    }
+    
+    // deletes the least recently used mesh files until the directory fits in its budget, keeping the one just saved and
+    // the ones that are mapped
+    private void trimDirectory(Path saved) throws IOException {
+        synchronized (diskLock) {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+            // sizes and times are read once, since other threads can touch the files while they're being sorted
+            Map<Path, Long> sizes = new HashMap<>();
+            Map<Path, Long> times = new HashMap<>();
+            long total = 0;
+            for (Path file : files) {
+                try {
+                    sizes.put(file, Files.size(file));
+                    times.put(file, Files.getLastModifiedTime(file).toMillis());
+                    total += sizes.get(file);
+                } catch (IOException e) {
+                    // deleted in the meantime
+                }
+            }
+            files.retainAll(sizes.keySet());
+            files.sort(Comparator.comparing(times::get));
+            for (Path file : files) {
+                if (total <= diskBudget) {
+                    break;
+                }
+                if (file.equals(saved) || Mesh.isFileMapped(file)) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(file);
+                    total -= sizes.get(file);
+                } catch (IOException e) {
+                    // still in use somewhere that doesn't let it be deleted, it goes the next time
+                }
+            }
+        }
+    }
+    
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // it's just deleted a little sooner
+        }
+    }
+    
+    // the file that the mesh for the key is saved in, named after a hash of the key
+    private Path file(Key key) {
+        if (directory == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(key.program);
+        for (double d : key.bounds) {
+            sb.append('|').append(Long.toHexString(Double.doubleToLongBits(d)));
+        }
+        for (int r : key.resolution) {
+            sb.append('|').append(r);
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return directory.resolve(name + EXTENSION);
+        } catch (NoSuchAlgorithmException e) {
+            // every jvm has sha-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private synchronized void put(Key key, Entry entry) {
+        // things bigger than the whole budget would just push everything else out
+        if (entry.bytes > budget) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.bytes;
+        }
+        size += entry.bytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= it.next().bytes;
+            it.remove();
+        }
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    // misses in memory, including the ones that were then found on disk
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    public long getDiskBudget() {
+        return diskBudget;
+    }
+    
+    // the approximate number of bytes used by the cached entries
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    public long getBudget() {
+        return budget;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "MeshCache[" + entries.size() + " entries, " + size / 1024 + " of " + budget / 1024 + " KB, " + hits + " hits, " + misses + " misses, " + diskHits + " from disk]";
+    }
+    
+    private static class Key {
+        private final String program;
+        private final double[] bounds;
+        private final int[] resolution;
+        
+        Key(String program, double[] bounds, int[] resolution) {
+            this.program = program;
+            this.bounds = bounds;
+            this.resolution = resolution;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return program.equals(k.program) && Arrays.equals(bounds, k.bounds) && Arrays.equals(resolution, k.resolution);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (program.hashCode() * 31 + Arrays.hashCode(bounds)) * 31 + Arrays.hashCode(resolution);
+        }
+    }
+    
+    private static class Entry {
+        private final Mesh mesh;
+        private final long bytes;
+        
+        Entry(Mesh mesh) {
+            this.mesh = mesh;
+            // a mapped mesh isn't in the heap, so it only counts towards the budget if it's an ordinary one
+            long bytes = ENTRY_OVERHEAD_BYTES;
+            if (!mesh.isMapped()) {
+                bytes += (long) mesh.getVertexCount() * 6 * Float.BYTES + (long) mesh.getTriangleCount() * 3 * Integer.BYTES;
+            }
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,126 +1,238 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.Queue;
-import java.util.Stack;
 
 /*
  * parser class, very important for the entire program
  * used by the grapher to read the equations
  * used by the shell to parse the given equations and turn into Expression objects
  * converts a human input function into a postfix form
- * done in a 2 step process:
- * - de-condenses the expression (5x -> 5*x, (-1) -> (0-1)) by applying implicit multiplication, and adding 0 in front of subtraction
- * - converts the expression into postfix form
+ *
+ * done in a single pass over the string, which reads the tokens and feeds them straight into the shunting yard
+ * algorithm, so it takes linear time even on very long (machine written) expressions. the shorthand that people
+ * write is handled along the way:
+ * - implicit multiplication (5x, 2sin(x), (x)(y), xy), by adding a * between an operand and whatever comes after it
+ * - unary minus (-x, 2*-x, x^-2), by adding a 0 and a - that binds tighter than * but looser than ^, so -x^2 is -(x^2)
+ * - |x| for abs(x), with a | that comes where an operand is expected opening it, and any other | closing it
+ * - the constants pi and e
+ * unclosed brackets are closed at the end, so sin(x works the same as sin(x)
  */
 public class Parser {
-    // add implicit multiplication, and subtraction with nothing in front of it (like -1 + x)
-    // abuses regex to turn something that was originally about 100 lines into 1 line
-    public static String preprocessExpression(String s) {
-        s = s.replace(" ", "").replace("[", "(").replace("]", ")");
-        
-        // abs
-        s = s.replaceAll("(\\|)[^|]*(\\|)", "abs($0)");
-        s = s.replace("|", "abs(");
-        
-        // put a 0 in front of subtraction if there is nothing in front of it
-        s = s.replaceAll("(^|\\()\\s*-(\\s*[\\d.]+|[a-zA-Z])", "$10-$2");
-        
-        // numbers before letters or opening parentheses (5x, 5(x))
-        while (s.matches(".*([\\d.]+)\\s*([a-zA-Z\\(]).*")) {
-            s = s.replaceAll("([\\d.]+)\\s*([a-zA-Z\\(])", "$1*$2");
-        }
-        
-        // constants
-        s = s.replace("pi", Double.toString(Math.PI));
-        s = s.replace("e", Double.toString(Math.E));
-        
-        // numbers before letters or opening parentheses (5x, 5(x))
-        while (s.matches(".*([\\d.]+)\\s*([a-zA-Z\\(]).*")) {
-            s = s.replaceAll("([\\d.]+)\\s*([a-zA-Z\\(])", "$1*$2");
-        }
-        
-        // variables (xyz) before numbers or letters or opening parentheses
-        while (s.matches(".*([xyz])\\s*([a-zA-Z\\(\\d]).*")) {
-            s = s.replaceAll("([xyz])\\s*([a-zA-Z\\(\\d])", "$1*$2");
-        }
-        // closing parentheses before numbers or letters or opening parentheses
-        while (s.matches(".*(\\))\\s*([a-zA-Z\\(\\d]).*")) {
-            s = s.replaceAll("(\\))\\s*([a-zA-Z\\(\\d])", "$1*$2");
-        }
-        
-        return s;
-    }
+    // function names, checked in order, so longer names that start with the same letters have to come first
+    private static final String[] FUNCTIONS = new String[]{
+        "asin", "acos", "atan", "sin", "cos", "tan", "log", "ln", "sqrt", "abs"
+    };
+    // the - of a unary minus, told apart from the binary one by reference
+    private static final Token NEGATE = new Token("-", Token.Type.OPERATOR);
+    // the precedence of NEGATE, on the doubled scale used by precedence()
+    private static final int NEGATE_PRECEDENCE = 5;
+    // markers for an opening bracket and an opening | on the operator stack
+    private static final Token BRACKET = new Token("(", Token.Type.NULL);
+    private static final Token BAR = new Token("|", Token.Type.NULL);
     
     // converts the expression into postfix form
     public static Queue<Token> toPostFix(String s) {
-        s = preprocessExpression(s);
         Queue<Token> ret = new LinkedList<Token>();
-        Stack<Token> stack = new Stack<Token>();
-        for (int i = 0; i < s.length(); ) {
-            StringBuilder token = new StringBuilder();
-            while (i < s.length() && Character.toString(s.charAt(i)).matches("[a-zA-Z\\d\\.]")) {
-                token.append(s.charAt(i));
+        Deque<Token> stack = new ArrayDeque<Token>();
+        // whether the last token finished an operand, in which case a new operand means implicit multiplication
+        boolean afterOperand = false;
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
                 i++;
             }
-            if (token == null || token.length() == 0) {
-                token.append(s.charAt(i));
-                i++;
-            }
-            String tkn = token.toString();
             // number (float or int, either works)
-            if (tkn.matches("[\\d.]+")) {
-                ret.add(new Token(tkn, Token.Type.NUMBER));
-            }
-            // variable
-            else if (tkn.matches("[xyz]")) {
-                ret.add(new Token(tkn, Token.Type.VARIABLE));
-            }
-            // function
-            else if (tkn.matches("[a-zA-Z]+")) {
-                stack.push(new Token(tkn, Token.Type.FUNCTION));
+            else if (Character.isDigit(c) || c == '.') {
+                int start = i;
+                while (i < s.length() && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.')) {
+                    i++;
+                }
+                String number = s.substring(start, i);
+                try {
+                    Double.parseDouble(number);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number: " + number);
+                }
+                afterOperand = operand(ret, stack, afterOperand, new Token(number, Token.Type.NUMBER));
             }
-            // operator
-            else if (tkn.matches("[+\\-*/^]")) {
-                // use Token.getPrecedence() to determine precedence
-                while (!stack.isEmpty() && stack.peek().getType() == Token.Type.OPERATOR && Token.getPrecedence(tkn) <= Token.getPrecedence(stack.peek().getValue())) {
-                    ret.add(stack.pop());
+            // functions, constants and variables
+            else if (Character.isLetter(c)) {
+                String function = function(s, i);
+                if (function != null) {
+                    i += function.length();
+                    multiplyIfNeeded(ret, stack, afterOperand);
+                    stack.push(new Token(function, Token.Type.FUNCTION));
+                    // the function has to be followed by its argument in brackets
+                    while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+                        i++;
+                    }
+                    if (i == s.length() || "([|".indexOf(s.charAt(i)) < 0) {
+                        throw new IllegalArgumentException("Missing brackets after " + function);
+                    }
+                    afterOperand = false;
+                } else if (s.startsWith("pi", i)) {
+                    i += 2;
+                    afterOperand = operand(ret, stack, afterOperand, new Token(Double.toString(Math.PI), Token.Type.NUMBER));
+                } else if (c == 'e') {
+                    i++;
+                    afterOperand = operand(ret, stack, afterOperand, new Token(Double.toString(Math.E), Token.Type.NUMBER));
+                } else if (c == 'x' || c == 'y' || c == 'z') {
+                    i++;
+                    afterOperand = operand(ret, stack, afterOperand, new Token(Character.toString(c), Token.Type.VARIABLE));
+                } else {
+                    int start = i;
+                    while (i < s.length() && Character.isLetter(s.charAt(i))) {
+                        i++;
+                    }
+                    throw new IllegalArgumentException("Invalid token: " + s.substring(start, i));
                 }
-                stack.push(new Token(tkn, Token.Type.OPERATOR));
             }
-            // opening parentheses
-            else if (tkn.matches("\\(")) {
-                stack.push(new Token(tkn, Token.Type.NULL));
+            // opening brackets
+            else if (c == '(' || c == '[') {
+                i++;
+                multiplyIfNeeded(ret, stack, afterOperand);
+                stack.push(BRACKET);
+                afterOperand = false;
+            }
+            // closing brackets
+            else if (c == ')' || c == ']') {
+                i++;
+                close(ret, stack, BRACKET);
+                afterOperand = true;
             }
-            // closing parentheses
-            else if (tkn.matches("\\)")) {
-                while (!stack.isEmpty() && stack.peek().getType() != Token.Type.NULL) {
-                    ret.add(stack.pop());
+            // abs
+            else if (c == '|') {
+                i++;
+                if (afterOperand && innermostGroup(stack) == BAR) {
+                    close(ret, stack, BAR);
+                } else {
+                    multiplyIfNeeded(ret, stack, afterOperand);
+                    stack.push(new Token("abs", Token.Type.FUNCTION));
+                    stack.push(BAR);
+                    afterOperand = false;
                 }
-                stack.pop();
-                // parentheses belonged to a function, add to output
-                if (!stack.isEmpty() && stack.peek().getType() == Token.Type.FUNCTION) {
-                    ret.add(stack.pop());
+            }
+            // operator
+            else if (Token.isOperator(Character.toString(c))) {
+                i++;
+                if (afterOperand) {
+                    pushOperator(ret, stack, new Token(Character.toString(c), Token.Type.OPERATOR));
+                    afterOperand = false;
+                } else if (c == '-') {
+                    // unary minus, 0 - the operand. it's a prefix operator, so it doesn't pop anything
+                    ret.add(new Token("0", Token.Type.NUMBER));
+                    stack.push(NEGATE);
+                } else if (c != '+') {
+                    // a unary plus doesn't do anything, but the other operators need something in front of them
+                    throw new IllegalArgumentException("Missing operand before " + c);
                 }
             } else {
-                throw new IllegalArgumentException("Invalid token: " + tkn);
+                throw new IllegalArgumentException("Invalid token: " + c);
             }
         }
+        // whatever is left, skipping the brackets that were never closed
         while (!stack.isEmpty()) {
-            ret.add(stack.pop());
+            Token t = stack.pop();
+            if (t.getType() != Token.Type.NULL) {
+                ret.add(t);
+            }
         }
         return ret;
     }
     
+    // the name of the function that starts at index i, or null if there isn't one
+    private static String function(String s, int i) {
+        for (String function : FUNCTIONS) {
+            if (s.startsWith(function, i)) {
+                return function;
+            }
+        }
+        return null;
+    }
+    
+    // adds an operand to the output, after a * if it follows another one. returns the new value of afterOperand
+    private static boolean operand(Queue<Token> ret, Deque<Token> stack, boolean afterOperand, Token token) {
+        multiplyIfNeeded(ret, stack, afterOperand);
+        ret.add(token);
+        return true;
+    }
+    
+    private static void multiplyIfNeeded(Queue<Token> ret, Deque<Token> stack, boolean afterOperand) {
+        if (afterOperand) {
+            pushOperator(ret, stack, new Token("*", Token.Type.OPERATOR));
+        }
+    }
+    
+    // pushes a binary operator, after popping the operators that bind at least as tightly (everything is left associative)
+    private static void pushOperator(Queue<Token> ret, Deque<Token> stack, Token operator) {
+        int precedence = precedence(operator);
+        while (!stack.isEmpty() && stack.peek().getType() == Token.Type.OPERATOR && precedence(stack.peek()) >= precedence) {
+            ret.add(stack.pop());
+        }
+        stack.push(operator);
+    }
+    
+    // Token's precedence doubled, to leave room for NEGATE in between * and ^
+    private static int precedence(Token operator) {
+        return operator == NEGATE ? NEGATE_PRECEDENCE : 2 * Token.getPrecedence(operator.getValue());
+    }
+    
+    // the opening bracket or | that the next closing one would close, or null if there isn't one
+    private static Token innermostGroup(Deque<Token> stack) {
+        for (Token t : stack) {
+            if (t.getType() == Token.Type.NULL) {
+                return t;
+            }
+        }
+        return null;
+    }
+    
+    // closes the innermost bracket or |, which has to be the given kind
+    private static void close(Queue<Token> ret, Deque<Token> stack, Token group) {
+        while (!stack.isEmpty() && stack.peek().getType() != Token.Type.NULL) {
+            ret.add(stack.pop());
+        }
+        if (stack.isEmpty() || stack.pop() != group) {
+            throw new IllegalArgumentException("Unmatched " + (group == BAR ? "|" : "closing bracket"));
+        }
+        // brackets that belonged to a function (or a |, which always does), add it to the output
+        if (!stack.isEmpty() && stack.peek().getType() == Token.Type.FUNCTION) {
+            ret.add(stack.pop());
+            // a | can also be the bracket of the function in front of it, like in sin|x|, which is done now too. a
+            // function is always followed by its bracket, so a function right under the abs can only be that one
+            if (group == BAR && !stack.isEmpty() && stack.peek().getType() == Token.Type.FUNCTION) {
+                ret.add(stack.pop());
+            }
+        }
+    }
+    
     // testing
     public static void main(String[] args) {
-        System.out.println(preprocessExpression("x^2y^2+y^2z^2+z^2x^2-r^2xyz+cos(ln(5))=0"));
-        System.out.println(preprocessExpression("abs(1sin(x))"));
-        System.out.println(preprocessExpression("1    sin(xabs(-  x)"));
-        Queue<Token> x = toPostFix("x^2y^2cos(ln(-5))-5.7");
-        System.out.println("x^2y^2cos(ln(-5))-5.7");
-        System.out.println(preprocessExpression("x^2y^2cos(ln(-5))-5.7"));
-        while (!x.isEmpty()) {
-            Token t = x.poll();
-            System.out.print(t.getValue() + " ");
+        for (String s : new String[]{"x^2y^2cos(ln(-5))-5.7", "2|x-1|", "-x^2+x^-2", "xsin(z)", "sin|x|+1", "cos|x|*2", "sin|cos|x||"}) {
+            System.out.print(s + " -> ");
+            for (Token t : toPostFix(s)) {
+                System.out.print(t.getValue() + " ");
+            }
+            System.out.println();
+        }
+        
+        // benchmark on inputs from 10 to 100k characters
+        String term = "sin(x)cos(y)+2x^2y-";
+        for (int length = 10; length <= 100000; length *= 10) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < length) {
+                sb.append(term);
+            }
+            String s = sb.substring(0, sb.length() - 1);
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 20; run++) {
+                long start = System.nanoTime();
+                toPostFix(s);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(s.length() + " characters: " + best / 1000 + " us");
         }
     }
-}
\ No newline at end of file
+}
@@ -1,9 +1,9 @@
 import com.jogamp.opengl.GL3;
 import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLEventListener;
+import com.jogamp.opengl.GLException;
 import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.math.Matrix4;
-import com.jogamp.opengl.util.Animator;
 
 import javax.swing.*;
 import java.awt.*;
@@ -12,10 +12,17 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /*
  * renderer for the graphs
@@ -26,8 +33,23 @@ import java.util.ArrayList;
  * the renderer is a JPanel, so it can be added to a JFrame or other container
  * inside the renderer we have a GLCanvas, which holds the opengl context to be used
  *
- * acts as a frontend for the marching cubes algorithm. it takes in a list of triangles from the
- * marching cubes algorithm, and provides a way to view them
+ * acts as a frontend for the marching cubes algorithm. it takes in the indexed mesh from the
+ * marching cubes algorithm, and provides a way to view it
+ *
+ * the mesh isn't sent to opengl all at once, since a mesh of a few hundred MB would hold up the gl thread for a long
+ * time. instead the buffers are made at their full size, empty, and every frame fills in the next UPLOAD_CHUNK_BYTES
+ * of them through glMapBufferRange, then draws the triangles that have been sent so far. so a big surface appears a
+ * part at a time over a few frames, and the window stays responsive the whole time
+ *
+ * there is no animation loop. a frame is only drawn when something changes: the camera moves, the mesh is replaced,
+ * the window is resized or uncovered, or there's more of the mesh to send. a frame is asked for with requestFrame,
+ * which does nothing if one is already on its way, so a burst of mouse events only draws one frame, and the matrices
+ * are only recalculated in that frame, not for every event. when nothing happens, nothing is drawn at all
+ *
+ * drawing a frame where nothing changed doesn't allocate anything: the uniform locations are looked up once when the
+ * programs are linked, the matrices are reused, and the mvp matrix goes to opengl from a direct buffer that's only
+ * filled in when it changes. the renderer counts its frames, how long they take and how much they allocate (see
+ * getFrameCount and the methods after it), so that this can be checked
  */
 public class Renderer extends JPanel implements GLEventListener {
     private final float MOUSE_SENSITIVITY = 0.01f;
@@ -38,15 +60,35 @@ public class Renderer extends JPanel implements GLEventListener {
     private final float MIN_PITCH = -(float) Math.PI / 2.0f;
     private final float MAJOR_TICK_SIZE = 0.02f;
     private final float MINOR_TICK_SIZE = 0.01f;
+    // how much of the mesh is sent to opengl per frame, at most
+    private static final int UPLOAD_CHUNK_BYTES = 16 << 20;
+    // for counting the bytes allocated by each frame. only some jvms can do that, and otherwise it's null
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
     String fnVertexSource, fnFragmentSource, axesVertexSource, axesFragmentSource;
     private GLCanvas canvas;
     private int programId1, programId2;
+    // the locations of the uniforms in the programs, looked up once they're linked
+    private int fnMvpLocation, fnScaleLocation, axesMvpLocation;
     private int[] vao1, vao2;
-    private float[] vertices;
+    private int[] vbo1, ebo1, vbo2;
+    private FloatBuffer vertices;
+    private IntBuffer indices;
+    // how many of the vertices and indices have been sent to opengl so far
+    private int uploadedVertices, uploadedIndices;
+    // a mesh from updateMesh or setMesh that hasn't been sent to opengl yet
+    private final AtomicReference<Update> pending = new AtomicReference<>();
     private float[] axesVertices;
     private double x1, y1, z1, x2, y2, z2;
     private vec3 center, bounds;
-    private Matrix4 mvpMatrix;
+    // the model view projection matrix, made by updateMatrix before the first frame is drawn, and again whenever the
+    // camera, the bounds or the window change
+    private final Matrix4 mvpMatrix = new Matrix4();
+    // the matrices that make up mvpMatrix, reused every time it's recalculated
+    private final Matrix4 model = new Matrix4(), view = new Matrix4(), projection = new Matrix4();
+    // mvpMatrix, in the form that's sent to the shaders
+    private final FloatBuffer mvpBuffer = ByteBuffer.allocateDirect(16 * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    // statistics about the frames drawn so far
+    private volatile long frames, lastFrameNanos, totalFrameNanos, lastFrameAllocatedBytes = -1;
     private float cameraZoom = 5.0f, cameraYaw, cameraPitch;
     private float scaleX, scaleY, scaleZ;
     MouseWheelListener mouseWheelListener = new MouseWheelListener() {
@@ -55,7 +97,7 @@ public class Renderer extends JPanel implements GLEventListener {
             cameraZoom += mouseWheelEvent.getWheelRotation() * ZOOM_SENSITIVITY;
             cameraZoom = Math.max(cameraZoom, MIN_ZOOM);
             cameraZoom = Math.min(cameraZoom, MAX_ZOOM);
-            reshape(canvas, 0, 0, canvas.getWidth(), canvas.getHeight());
+            cameraMoved();
         }
     };
     private int lastMouseX, lastMouseY;
@@ -68,7 +110,7 @@ public class Renderer extends JPanel implements GLEventListener {
             cameraPitch = Math.min(cameraPitch, MAX_PITCH);
             lastMouseX = e.getX();
             lastMouseY = e.getY();
-            reshape(canvas, 0, 0, canvas.getWidth(), canvas.getHeight());
+            cameraMoved();
         }
         
         @Override
@@ -78,105 +120,31 @@ public class Renderer extends JPanel implements GLEventListener {
         }
         
     };
-    private Animator animator;
+    // set when the camera or the window changes, so the matrix is recalculated before the next frame is drawn
+    private volatile boolean matrixChanged = true;
+    // whether a frame has been asked for and hasn't been drawn yet
+    private final AtomicBoolean frameRequested = new AtomicBoolean();
     
     public Renderer() {
         super();
     }
     
-    public Renderer(double x1, double y1, double z1, double x2, double y2, double z2, ArrayList<Float> vertices) throws IOException {
+    public Renderer(double x1, double y1, double z1, double x2, double y2, double z2, Mesh mesh) throws IOException {
         super();
         
-        // load the vertices from the marching cubes algorithm, as well as doing some preprocessing
-        // notably, we interlace the vertices with their normals, so that the vertex shader can send them
-        // to the fragment shader through a varying vec3. this lets the fragment shader figure out the colors, and
-        // importantly, the gridlines
-        this.vertices = new float[vertices.size() * 2];
-        for (int i = 0; i < vertices.size(); i += 9) {
-            vec3 v1 = new vec3(vertices.get(i), vertices.get(i + 1), vertices.get(i + 2));
-            vec3 v2 = new vec3(vertices.get(i + 3), vertices.get(i + 4), vertices.get(i + 5));
-            vec3 v3 = new vec3(vertices.get(i + 6), vertices.get(i + 7), vertices.get(i + 8));
-            vec3 normal = vec3.cross(vec3.subtract(v2, v1), vec3.subtract(v3, v1)).normalize();
-            this.vertices[i * 2] = vertices.get(i);
-            this.vertices[i * 2 + 1] = vertices.get(i + 1);
-            this.vertices[i * 2 + 2] = vertices.get(i + 2);
-            this.vertices[i * 2 + 3] = (float) normal.x;
-            this.vertices[i * 2 + 4] = (float) normal.y;
-            this.vertices[i * 2 + 5] = (float) normal.z;
-            this.vertices[i * 2 + 6] = vertices.get(i + 3);
-            this.vertices[i * 2 + 7] = vertices.get(i + 4);
-            this.vertices[i * 2 + 8] = vertices.get(i + 5);
-            this.vertices[i * 2 + 9] = (float) normal.x;
-            this.vertices[i * 2 + 10] = (float) normal.y;
-            this.vertices[i * 2 + 11] = (float) normal.z;
-            this.vertices[i * 2 + 12] = vertices.get(i + 6);
-            this.vertices[i * 2 + 13] = vertices.get(i + 7);
-            this.vertices[i * 2 + 14] = vertices.get(i + 8);
-            this.vertices[i * 2 + 15] = (float) normal.x;
-            this.vertices[i * 2 + 16] = (float) normal.y;
-            this.vertices[i * 2 + 17] = (float) normal.z;
-        }
+        // the vertices from the marching cubes algorithm are interlaced with their normals, so that the vertex shader
+        // can send them to the fragment shader through a varying vec3. this lets the fragment shader figure out the
+        // colors, and importantly, the gridlines
+        // the buffers are direct, either made that way by the mesher or mapped from the disk cache, so they go to opengl
+        // as they are, without jogl copying them into native memory first
+        vertices = mesh.getVertexBuffer();
+        indices = mesh.getIndexBuffer();
         
-        this.x1 = x1;
-        this.y1 = y1;
-        this.z1 = z1;
-        this.x2 = x2;
-        this.y2 = y2;
-        this.z2 = z2;
-        
-        // stores information about the volume being rendered, so that the camera can be positioned correctly
-        center = new vec3((x1 + x2) / 2, (y1 + y2) / 2, (z1 + z2) / 2);
-        bounds = new vec3(x2 - x1, y2 - y1, z2 - z1);
+        setBounds(new double[]{x1, y1, z1, x2, y2, z2});
         
         cameraYaw = (float) Math.PI / 4;
         cameraPitch = (float) Math.PI / 8;
         
-        //viewMatrix = new Matrix4();
-        //viewMatrix.rotate((float)Math.PI/8, 1, 0, 0);
-        //viewMatrix.rotate(-(float)Math.PI/5, 0, 1, 0);
-        //viewMatrix.rotate(10, 0, 1, 0);
-        //viewMatrix.rotate(10, 0, 0, 1);
-        //viewMatrix.scale(0.3f, 0.3f, 0.3f);
-        //projectionMatrix = new Matrix4();
-        //projectionMatrix.makeOrtho(-1, 1, -1, 1, -1, 1);
-        
-        // uses the Model View Projection matrices idea to position the camera, and render the model
-        // in the correct place
-        // first the model matrix. the model matrix is responsible for converting the model's local coordinates into
-        // the global coordinate space. to make things easier, I extended the functionality of the matrix to also
-        // normalize the model's vertices to the range -0.5 to 0.5, so that the model is always rendered in the same,
-        // and to make the remaining matrices easier to calculate
-        
-        // note that since the MVP system works is as such:
-        // V_final = M_proj * M_view * M_model * V_local
-        // we need to apply the transformations / matrices in reverse order
-        Matrix4 modelMatrix = new Matrix4(); // translate and rescale model down
-        modelMatrix.scale((float) (2f / bounds.x), (float) (2f / bounds.y), (float) (2f / bounds.z));
-        modelMatrix.translate((float) -center.x, (float) -center.y, (float) -center.z);
-        
-        // the view matrix rotates the model so that all the coordinates are in the camera's coordinate space.
-        Matrix4 viewMatrix = new Matrix4(); // camera orientation
-        viewMatrix.rotate(cameraPitch, 1, 0, 0);
-        viewMatrix.rotate(cameraYaw, 0, 1, 0);
-        
-        // we are using an orthographic projection. this means that depth information is useless to us
-        // the reason I did this is because it makes it easier to examine the rendered model
-        Matrix4 projectionMatrix = new Matrix4();
-        
-        // set the left and right bounds of the orthographic projection to be the same aspect ratio as the window
-        // so that the model still appears normal
-        // near and far clipping planes don't matter for orthographic projection, so we set them to arbitrary values
-        // that are big enough to encompass the model all the time
-        float width = 16.0f / 9.0f * cameraZoom;
-        float height = cameraZoom;
-        projectionMatrix.makeOrtho(-width / 2, width / 2, -height / 2, height / 2, -2, 2);
-        
-        // the final matrix is the product of all the matrices
-        mvpMatrix = new Matrix4();
-        mvpMatrix.multMatrix(projectionMatrix);
-        mvpMatrix.multMatrix(viewMatrix);
-        mvpMatrix.multMatrix(modelMatrix);
-        
         // read the vertex shader source and fragment shader sources from ./shaders/
         fnVertexSource = Files.readString(Paths.get("shaders/fn_vertex.vsh"));
         fnFragmentSource = Files.readString(Paths.get("shaders/fn_fragment.fsh"));
@@ -188,8 +156,6 @@ public class Renderer extends JPanel implements GLEventListener {
         canvas.addMouseWheelListener(mouseWheelListener);
         canvas.addMouseMotionListener(mouseDrag);
         
-        animator = new Animator(canvas);
-        
         this.setLayout(new BorderLayout());
         this.add(canvas, BorderLayout.CENTER);
     }
@@ -203,15 +169,15 @@ public class Renderer extends JPanel implements GLEventListener {
         //MarchingCubes mc = new MarchingCubes(new Expression("1/x^2 - 1/z^2 + 1/y^2"), -5, -5, -5, 5, 5, 5);
         MarchingCubes mc = new MarchingCubes(new Expression("sin(x)*cos(y) + sin(y)*cos(z) + sin(z)*cos(x)"), -5, -5, -5, 5, 5, 5);
         mc.generateScalarField();
-        ArrayList<Float> vertices = mc.extractMesh();
-        System.out.println("Vertices: " + vertices.size() / 3);
+        Mesh mesh = mc.extractIndexedMesh();
+        System.out.println("Vertices: " + mesh.getVertexCount() + ", triangles: " + mesh.getTriangleCount());
         
         JFrame frame = new JFrame("Marching Cubes");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(800, 600);
         frame.setLocationRelativeTo(null);
-        //Renderer r = new Renderer(-1.1, -1.1, -1.1, 1.1, 1.1, 1.1, vertices);
-        Renderer r = new Renderer(-5, -5, -5, 5, 5, 5, vertices);
+        //Renderer r = new Renderer(-1.1, -1.1, -1.1, 1.1, 1.1, 1.1, mesh);
+        Renderer r = new Renderer(-5, -5, -5, 5, 5, 5, mesh);
         r.setVisible(true);
         
         frame.getContentPane().add(r);
@@ -253,18 +219,30 @@ public class Renderer extends JPanel implements GLEventListener {
         gl.glAttachShader(programId1, fnVertexShaderId);
         gl.glAttachShader(programId1, fnFragmentShaderId);
         gl.glLinkProgram(programId1);
+        // the program keeps what it needs from the shaders, so they can be deleted now
+        gl.glDeleteShader(fnVertexShaderId);
+        gl.glDeleteShader(fnFragmentShaderId);
+        fnMvpLocation = gl.glGetUniformLocation(programId1, "mvp");
+        fnScaleLocation = gl.glGetUniformLocation(programId1, "scaleMajor");
         
         // vertex buffer object to store all of the vertex information
-        int[] vbo1 = new int[1];
+        vbo1 = new int[1];
         gl.glGenBuffers(1, vbo1, 0);
         gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo1[0]);
-        gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) vertices.length * Float.BYTES, FloatBuffer.wrap(vertices), GL3.GL_STATIC_DRAW);
         
         // vertex array object to tell opengl how to read the vertex buffer object
         vao1 = new int[1];
         gl.glGenVertexArrays(1, vao1, 0);
         gl.glBindVertexArray(vao1[0]);
         
+        // element buffer object with the indices of the vertices of each triangle. it's bound while the vertex array
+        // object is, so the vertex array object remembers it
+        ebo1 = new int[1];
+        gl.glGenBuffers(1, ebo1, 0);
+        gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, ebo1[0]);
+        // the mesh itself is sent a chunk at a time in display
+        allocateMeshBuffers(gl);
+        
         // attribute 0 will be the vertex positions, since our data is stored as x1, y1, z1, nx1, ny1, nz1, x2, y2, z2, nx2, ny2, nz2, etc
         // 3 elements, jumps of 6 elements, starting at the beginning
         gl.glEnableVertexAttribArray(0);
@@ -287,7 +265,34 @@ public class Renderer extends JPanel implements GLEventListener {
         gl.glAttachShader(programId2, axesVertexShaderId);
         gl.glAttachShader(programId2, axesFragmentShaderId);
         gl.glLinkProgram(programId2);
+        gl.glDeleteShader(axesVertexShaderId);
+        gl.glDeleteShader(axesFragmentShaderId);
+        axesMvpLocation = gl.glGetUniformLocation(programId2, "mvp");
         
+        // create new VBO, and fill it with the axes for the bounds
+        vbo2 = new int[1];
+        gl.glGenBuffers(1, vbo2, 0);
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo2[0]);
+        buildAxes(gl);
+        
+        // create new VAO
+        vao2 = new int[1];
+        gl.glGenVertexArrays(1, vao2, 0);
+        gl.glBindVertexArray(vao2[0]);
+        
+        // position
+        gl.glEnableVertexAttribArray(0);
+        gl.glVertexAttribPointer(0, 3, GL3.GL_FLOAT, false, 6 * Float.BYTES, 0);
+        
+        // color
+        gl.glEnableVertexAttribArray(1);
+        gl.glVertexAttribPointer(1, 3, GL3.GL_FLOAT, false, 6 * Float.BYTES, 3 * Float.BYTES);
+        
+        gl.glBindVertexArray(0);
+    }
+    
+    // makes the vertices of the axes and their tick marks for the current bounds
+    private void buildAxes(GL3 gl) {
         // calculate the scale on the axes. we want the axes to be 1/10th the size of the function at smallest
         scaleX = (float) Math.pow(10, Math.floor(Math.log10(bounds.x)));
         scaleY = (float) Math.pow(10, Math.floor(Math.log10(bounds.y)));
@@ -479,34 +484,31 @@ public class Renderer extends JPanel implements GLEventListener {
             axesVertices[i] = axes.get(i);
         }
         
-        // create new VBO
-        int[] vbo2 = new int[1];
-        gl.glGenBuffers(1, vbo2, 0);
-        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo2[0]);
+        // send them to the axes VBO, which has to be bound
         gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) axesVertices.length * Float.BYTES, FloatBuffer.wrap(axesVertices), GL3.GL_STATIC_DRAW);
-        
-        // create new VAO
-        vao2 = new int[1];
-        gl.glGenVertexArrays(1, vao2, 0);
-        gl.glBindVertexArray(vao2[0]);
-        
-        // position
-        gl.glEnableVertexAttribArray(0);
-        gl.glVertexAttribPointer(0, 3, GL3.GL_FLOAT, false, 6 * Float.BYTES, 0);
-        
-        // color
-        gl.glEnableVertexAttribArray(1);
-        gl.glVertexAttribPointer(1, 3, GL3.GL_FLOAT, false, 6 * Float.BYTES, 3 * Float.BYTES);
-        
-        gl.glBindVertexArray(0);
     }
-   
+    
+    // the volume being rendered, which the camera and the axes are positioned from
+    private void setBounds(double[] b) {
+        x1 = b[0];
+        y1 = b[1];
+        z1 = b[2];
+        x2 = b[3];
+        y2 = b[4];
+        z2 = b[5];
+        center = new vec3((x1 + x2) / 2, (y1 + y2) / 2, (z1 + z2) / 2);
+        bounds = new vec3(x2 - x1, y2 - y1, z2 - z1);
+    }
+    
     // delete things so we can close without causing a memory leak
     @Override
     public void dispose(GLAutoDrawable glAutoDrawable) {
         GL3 gl = glAutoDrawable.getGL().getGL3();
         gl.glDeleteVertexArrays(1, vao1, 0);
         gl.glDeleteVertexArrays(1, vao2, 0);
+        gl.glDeleteBuffers(1, vbo1, 0);
+        gl.glDeleteBuffers(1, ebo1, 0);
+        gl.glDeleteBuffers(1, vbo2, 0);
         gl.glDeleteProgram(programId1);
         gl.glDeleteProgram(programId2);
     }
@@ -514,7 +516,41 @@ public class Renderer extends JPanel implements GLEventListener {
     // draw the scene
     @Override
     public void display(GLAutoDrawable glAutoDrawable) {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
         GL3 gl = glAutoDrawable.getGL().getGL3();
+        // anything that changes from here on needs a new frame
+        frameRequested.set(false);
+        
+        // swap in the newest mesh from updateMesh or setMesh, if there is one, along with its bounds
+        Update update = pending.getAndSet(null);
+        if (update != null && update.bounds != null) {
+            setBounds(update.bounds);
+            gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo2[0]);
+            buildAxes(gl);
+            matrixChanged = true;
+        }
+        if (update != null) {
+            Mesh mesh = update.mesh;
+            vertices = mesh.getVertexBuffer();
+            indices = mesh.getIndexBuffer();
+            gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo1[0]);
+            // the element buffer is part of the vertex array object's state, so it's bound through that
+            gl.glBindVertexArray(vao1[0]);
+            allocateMeshBuffers(gl);
+            gl.glBindVertexArray(0);
+        }
+        // send the next part of the mesh, if it isn't all there yet, and come back for the rest in the next frame
+        if (uploadedIndices < indices.capacity()) {
+            uploadMesh(gl);
+            if (uploadedIndices < indices.capacity()) {
+                requestFrame();
+            }
+        }
+        if (matrixChanged) {
+            matrixChanged = false;
+            updateMatrix(glAutoDrawable.getSurfaceWidth(), glAutoDrawable.getSurfaceHeight());
+        }
         
         // clear the screen
         gl.glClear(GL3.GL_COLOR_BUFFER_BIT | GL3.GL_DEPTH_BUFFER_BIT);
@@ -525,10 +561,10 @@ public class Renderer extends JPanel implements GLEventListener {
         gl.glBindVertexArray(vao1[0]);
         gl.glUseProgram(programId1);
         // we need to pass the model view projection matrix to the shader, as well as the scale vector, for the shaders to use
-        gl.glUniformMatrix4fv(gl.glGetUniformLocation(programId1, "mvp"), 1, false, FloatBuffer.wrap(mvpMatrix.getMatrix()));
-        gl.glUniform3fv(gl.glGetUniformLocation(programId1, "scaleMajor"), 1, FloatBuffer.wrap(new float[]{scaleX, scaleY, scaleZ}));
-        // draw the triangles
-        gl.glDrawArrays(GL3.GL_TRIANGLES, 0, vertices.length / 6);
+        gl.glUniformMatrix4fv(fnMvpLocation, 1, false, mvpBuffer);
+        gl.glUniform3f(fnScaleLocation, scaleX, scaleY, scaleZ);
+        // draw the triangles that have been sent so far, using the indices in the element buffer
+        gl.glDrawElements(GL3.GL_TRIANGLES, uploadedIndices, GL3.GL_UNSIGNED_INT, 0);
         
         // drawing the axes
         // we are using the vertex array object associated with the axes vertices
@@ -536,42 +572,220 @@ public class Renderer extends JPanel implements GLEventListener {
         gl.glBindVertexArray(vao2[0]);
         gl.glUseProgram(programId2);
         // still needs the model view projection matrix to place them in the right spot
-        gl.glUniformMatrix4fv(gl.glGetUniformLocation(programId2, "mvp"), 1, false, FloatBuffer.wrap(mvpMatrix.getMatrix()));
+        gl.glUniformMatrix4fv(axesMvpLocation, 1, false, mvpBuffer);
         // renders them as lines instead of triangles
         gl.glDrawArrays(GL3.GL_LINES, 0, axesVertices.length / 6);
+        
+        lastFrameNanos = System.nanoTime() - start;
+        totalFrameNanos += lastFrameNanos;
+        lastFrameAllocatedBytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        frames++;
     }
     
-    // called when the window is resized
+    // called when the window is resized. jogl draws a frame right after this
     @Override
     public void reshape(GLAutoDrawable glAutoDrawable, int i, int i1, int i2, int i3) {
         GL3 gl = glAutoDrawable.getGL().getGL3();
         gl.glViewport(0, 0, i2, i3);
-        float normalizedWidth = (float) i2 / (float) i3;
+        matrixChanged = true;
+    }
+    
+    private void cameraMoved() {
+        matrixChanged = true;
+        requestFrame();
+    }
+    
+    // asks for a frame to be drawn, unless one already has been and hasn't been drawn yet. the frame is drawn by the
+    // canvas when it repaints, so this can be called from any thread
+    private void requestFrame() {
+        if (frameRequested.compareAndSet(false, true)) {
+            canvas.repaint();
+        }
+    }
+    
+    // recalculates the model view projection matrix for a window of the given size
+    private void updateMatrix(int width, int height) {
+        float normalizedWidth = (float) width / (float) height;
         float normalizedHeight = 1.0f;
         normalizedWidth *= cameraZoom;
         normalizedHeight *= cameraZoom;
         
-        // recalculate the model view projection matrix
-        Matrix4 modelMatrix = new Matrix4(); // translate and rescale model down to -1 to 1
-        modelMatrix.scale((float) (2f / bounds.x), (float) (2f / bounds.y), (float) (2f / bounds.z));
-        modelMatrix.translate((float) -center.x, (float) -center.y, (float) -center.z);
+        // uses the Model View Projection matrices idea to position the camera, and render the model
+        // in the correct place
+        // first the model matrix. the model matrix is responsible for converting the model's local coordinates into
+        // the global coordinate space. to make things easier, I extended the functionality of the matrix to also
+        // normalize the model's vertices to the range -1 to 1, so that the model is always rendered in the same,
+        // and to make the remaining matrices easier to calculate
+        
+        // note that since the MVP system works is as such:
+        // V_final = M_proj * M_view * M_model * V_local
+        // we need to apply the transformations / matrices in reverse order
+        model.loadIdentity(); // translate and rescale model down to -1 to 1
+        model.scale((float) (2f / bounds.x), (float) (2f / bounds.y), (float) (2f / bounds.z));
+        model.translate((float) -center.x, (float) -center.y, (float) -center.z);
         
-        Matrix4 viewMatrix = new Matrix4(); // camera orientation
-        viewMatrix.rotate(cameraPitch, 1, 0, 0);
-        viewMatrix.rotate(cameraYaw, 0, 1, 0);
+        // the view matrix rotates the model so that all the coordinates are in the camera's coordinate space.
+        view.loadIdentity(); // camera orientation
+        view.rotate(cameraPitch, 1, 0, 0);
+        view.rotate(cameraYaw, 0, 1, 0);
         
-        Matrix4 projectionMatrix = new Matrix4(); // orthographic projection, take window size into account
-        projectionMatrix.makeOrtho(-normalizedWidth / 2, normalizedWidth / 2, -normalizedHeight / 2, normalizedHeight / 2, -2, 2);
+        // we are using an orthographic projection. this means that depth information is useless to us
+        // the reason I did this is because it makes it easier to examine the rendered model
+        // the left and right bounds have the same aspect ratio as the window, so that the model still appears normal
+        // near and far clipping planes don't matter for orthographic projection, so we set them to arbitrary values
+        // that are big enough to encompass the model all the time
+        projection.loadIdentity(); // orthographic projection, take window size into account
+        projection.makeOrtho(-normalizedWidth / 2, normalizedWidth / 2, -normalizedHeight / 2, normalizedHeight / 2, -2, 2);
         
-        mvpMatrix = new Matrix4();
-        mvpMatrix.multMatrix(projectionMatrix);
-        mvpMatrix.multMatrix(viewMatrix);
-        mvpMatrix.multMatrix(modelMatrix);
+        // the final matrix is the product of all the matrices
+        mvpMatrix.loadIdentity();
+        mvpMatrix.multMatrix(projection);
+        mvpMatrix.multMatrix(view);
+        mvpMatrix.multMatrix(model);
+        mvpBuffer.clear();
+        mvpBuffer.put(mvpMatrix.getMatrix());
+        mvpBuffer.flip();
+    }
+    
+    // makes the vertex and element buffers (which have to be bound) the size of the mesh, without anything in them
+    // yet. this also orphans the old contents, so opengl can let go of them once the frames using them are done
+    private void allocateMeshBuffers(GL3 gl) {
+        gl.glBufferData(GL3.GL_ARRAY_BUFFER, (long) vertices.capacity() * Float.BYTES, null, GL3.GL_STATIC_DRAW);
+        gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER, (long) indices.capacity() * Integer.BYTES, null, GL3.GL_STATIC_DRAW);
+        uploadedVertices = 0;
+        uploadedIndices = 0;
+    }
+    
+    // sends the next triangles of the mesh to opengl, along with the vertices they use, up to about
+    // UPLOAD_CHUNK_BYTES. the mesh is made a slab or a brick at a time, so the triangles mostly use the vertices just
+    // after the ones already sent, and whatever has been sent is a part of the surface that can be drawn
+    private void uploadMesh(GL3 gl) {
+        int end = uploadedIndices;
+        int needed = uploadedVertices;
+        while (end < indices.capacity()) {
+            int n = Math.max(needed, Math.max(indices.get(end), Math.max(indices.get(end + 1), indices.get(end + 2))) + 1);
+            long bytes = (long) (end + 3 - uploadedIndices) * Integer.BYTES + (long) (n - uploadedVertices) * 6 * Float.BYTES;
+            // always at least one triangle, however many vertices it takes
+            if (bytes > UPLOAD_CHUNK_BYTES && end > uploadedIndices) {
+                break;
+            }
+            needed = n;
+            end += 3;
+        }
         
-        display(glAutoDrawable);
+        gl.glBindVertexArray(vao1[0]);
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vbo1[0]);
+        boolean ok = true;
+        if (needed > uploadedVertices) {
+            FloatBuffer part = vertices.duplicate();
+            part.position(uploadedVertices * 6).limit(needed * 6);
+            ok = upload(gl, GL3.GL_ARRAY_BUFFER, (long) uploadedVertices * 6 * Float.BYTES, part);
+        }
+        if (ok) {
+            IntBuffer part = indices.duplicate();
+            part.position(uploadedIndices).limit(end);
+            ok = upload(gl, GL3.GL_ELEMENT_ARRAY_BUFFER, (long) uploadedIndices * Integer.BYTES, part);
+        }
+        gl.glBindVertexArray(0);
+        if (ok) {
+            uploadedVertices = needed;
+            uploadedIndices = end;
+        } else {
+            // the buffers lost their contents while they were mapped, which opengl is allowed to do (when the screen
+            // mode changes, for example), so everything is sent again
+            uploadedVertices = 0;
+            uploadedIndices = 0;
+        }
+    }
+    
+    // writes a buffer of floats or ints into the bound buffer at the offset, by mapping that range. nothing draws from
+    // the part that's being written yet, so there's no need to wait for opengl to finish with the buffer, and the old
+    // contents of the range can be thrown away. returns false if the contents were lost and have to be sent again
+    private boolean upload(GL3 gl, int target, long offset, Buffer data) {
+        long length = (long) data.remaining() * 4;
+        ByteBuffer map;
+        try {
+            map = gl.glMapBufferRange(target, offset, length,
+                GL3.GL_MAP_WRITE_BIT | GL3.GL_MAP_INVALIDATE_RANGE_BIT | GL3.GL_MAP_UNSYNCHRONIZED_BIT);
+        } catch (GLException e) {
+            // jogl throws instead of returning null when the driver won't map the range, so it copies the data
+            // itself instead
+            gl.glBufferSubData(target, offset, length, data);
+            return true;
+        }
+        map.order(ByteOrder.nativeOrder());
+        if (data instanceof FloatBuffer) {
+            map.asFloatBuffer().put((FloatBuffer) data);
+        } else {
+            map.asIntBuffer().put((IntBuffer) data);
+        }
+        return gl.glUnmapBuffer(target);
+    }
+    
+    // replaces the mesh being shown, keeping the camera and everything else as it is. the mesh has to be for the same
+    // bounds. it's sent to opengl in the existing buffers at the start of the next frame, so this can be called from
+    // any thread, and only the newest mesh is sent if several come in between two frames
+    public void updateMesh(Mesh mesh) {
+        // new bounds from a setMesh that hasn't been shown yet still have to be used
+        pending.updateAndGet(u -> new Update(mesh, u == null ? null : u.bounds));
+        requestFrame();
+    }
+    
+    // replaces the mesh being shown with one for different bounds, keeping the opengl context, the shader programs and
+    // the camera. the buffers of the mesh are reused, and the axes are rebuilt for the new bounds. like updateMesh, it
+    // can be called from any thread and happens at the start of the next frame
+    public void setMesh(double x1, double y1, double z1, double x2, double y2, double z2, Mesh mesh) {
+        pending.set(new Update(mesh, new double[]{x1, y1, z1, x2, y2, z2}));
+        requestFrame();
     }
     
-    public void startAnimation() {
-        animator.start();
+    // whether this is the empty renderer from the constructor without arguments, which doesn't have a canvas
+    public boolean isEmpty() {
+        return canvas == null;
+    }
+    
+    public long getFrameCount() {
+        return frames;
+    }
+    
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+    
+    public long getAverageFrameNanos() {
+        return frames == 0 ? 0 : totalFrameNanos / frames;
+    }
+    
+    // the bytes allocated while drawing the last frame, or -1 if the jvm can't tell. it's 0 unless something changed,
+    // like a new mesh or bounds
+    public long getLastFrameAllocatedBytes() {
+        return lastFrameAllocatedBytes;
+    }
+    
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun;
+            }
+        }
+        return null;
+    }
+    
+    // the bytes allocated by the current thread so far, or -1 if the jvm can't tell
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    // a mesh waiting to be shown, with the bounds it's for, or null if they stay the same
+    private static class Update {
+        private final Mesh mesh;
+        private final double[] bounds;
+        
+        Update(Mesh mesh, double[] bounds) {
+            this.mesh = mesh;
+            this.bounds = bounds;
+        }
     }
 }